@@ -21,7 +21,9 @@
 package beast.inference.distributions;
 
 import beast.inference.model.Model;
+import beast.math.NonDifferentiableException;
 import beast.math.Random;
+import beast.math.Tape;
 
 import java.util.stream.DoubleStream;
 import java.util.stream.LongStream;
@@ -74,6 +76,40 @@ public abstract class Distribution extends Model {
      */
     public abstract double differentiateLogPDF(double x);
 
+    /**
+     * second derivative of the natural log of the probability density function of the distribution
+     *
+     * @param x argument
+     * @return second derivative of the log pdf value
+     */
+    public abstract double secondDerivativeLogPDF(double x);
+
+    /**
+     * records the natural log of the probability density function of the distribution on a tape,
+     * with its first and second derivatives, treating the parameters of the distribution as constants;
+     * where the log pdf is not differentiable its derivatives are recorded as NaN, so that the value can still be used
+     *
+     * @param tape the tape
+     * @param x node of the argument
+     * @return node of the log pdf value
+     */
+    public int logPDF(final Tape tape, final int x) {
+        final double value = tape.getValue(x);
+        final double logPDF = logPDF(value);
+        if (logPDF == Double.NEGATIVE_INFINITY)
+            return tape.apply(x, logPDF, 0.0, 0.0);
+        double derivative;
+        double secondDerivative;
+        try {
+            derivative = differentiateLogPDF(value);
+            secondDerivative = secondDerivativeLogPDF(value);
+        } catch (final NonDifferentiableException ex) {
+            derivative = Double.NaN;
+            secondDerivative = Double.NaN;
+        }
+        return tape.apply(x, logPDF, derivative, secondDerivative);
+    }
+
     /**
      * cumulative density function of the distribution
      *
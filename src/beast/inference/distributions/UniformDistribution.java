@@ -73,6 +73,14 @@ public final class UniformDistribution extends Distribution {
             throw new NonDifferentiableException();
     }
 
+    @Override
+    public double secondDerivativeLogPDF(final double x) {
+        if (getLower() < x && x < getUpper())
+            return 0.0;
+        else
+            throw new NonDifferentiableException();
+    }
+
     @Override
     public double cdf(final double x) {
         final double lower = getLower();
@@ -0,0 +1,169 @@
+/*
+ * MCMC.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.mcmc;
+
+import beast.inference.logging.Logger;
+import beast.inference.model.DependencyPlan;
+import beast.inference.model.Likelihood;
+import beast.inference.model.Model;
+import beast.inference.operation.CoercableOperator;
+import beast.inference.operation.CoercionMode;
+import beast.inference.operation.Operator;
+import beast.inference.operation.OperatorFailedException;
+import beast.math.Random;
+
+/**
+ * A Metropolis-Hastings Markov chain.
+ * The model graph of the posterior is compiled into a dependency plan (and so frozen) on construction.
+ * Once the chain has been started, each step is free of allocation so that very long chains
+ * are not slowed down by the garbage collector.
+ *
+ * @author Alexei Drummond
+ * @author Andrew Rambaut
+ * @author Arman Bilge
+ */
+public final class MCMC {
+
+    private final Likelihood posterior;
+    private final Model<?> model;
+    private final OperatorSchedule schedule;
+    private final Logger[] loggers;
+
+    private long currentState = 0;
+    private double currentLogPosterior;
+
+    public MCMC(final Likelihood posterior, final OperatorSchedule schedule, final Logger... loggers) {
+        this.posterior = posterior;
+        this.model = posterior.getModel();
+        this.schedule = schedule;
+        this.loggers = loggers.clone();
+        posterior.setUsed();
+        DependencyPlan.compile(model);
+    }
+
+    /**
+     * Runs the chain until it reaches the given state.
+     *
+     * @param chainLength the final state of the chain
+     */
+    public void run(final long chainLength) {
+
+        for (final Logger logger : loggers)
+            logger.startLogging();
+
+        currentLogPosterior = posterior.getLogLikelihood();
+        if (currentState == 0)
+            log(currentState);
+
+        while (currentState < chainLength) {
+            step();
+            log(++currentState);
+        }
+
+        for (final Logger logger : loggers)
+            logger.stopLogging();
+    }
+
+    private void step() {
+
+        final Operator operator = schedule.nextOperator();
+
+        model.storeState();
+
+        final long startTime = System.nanoTime();
+
+        double logHastingsRatio;
+        try {
+            logHastingsRatio = operator.operate();
+        } catch (final OperatorFailedException ex) {
+            logHastingsRatio = Double.NEGATIVE_INFINITY;
+        }
+
+        final double logPosterior;
+        final double logRatio;
+        final boolean accept;
+        final boolean exact;
+        if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+            // rejection is guaranteed, so do not bother evaluating the posterior
+            logPosterior = Double.NEGATIVE_INFINITY;
+            logRatio = Double.NEGATIVE_INFINITY;
+            accept = false;
+            exact = true;
+        } else {
+            // the proposal is accepted if the posterior exceeds this threshold,
+            // so its evaluation can stop as soon as it is known to fall below it
+            final double threshold = Math.log(Random.nextDouble()) + currentLogPosterior - logHastingsRatio;
+            logPosterior = posterior.getLogLikelihood(threshold);
+            logRatio = logPosterior - currentLogPosterior + logHastingsRatio;
+            accept = logPosterior > threshold;
+            // otherwise the evaluation stopped early and the posterior is only bounded
+            exact = posterior.getLikelihoodKnown();
+        }
+
+        operator.addEvaluationTime(System.nanoTime() - startTime);
+
+        if (accept) {
+            operator.accept(logPosterior - currentLogPosterior);
+            currentLogPosterior = logPosterior;
+        } else {
+            operator.reject();
+            model.restoreState();
+        }
+
+        if (operator instanceof CoercableOperator) {
+            // a ratio derived from a bounded posterior would overstate the acceptance probability,
+            // so the outcome of the step itself is used instead
+            final double acceptanceProbability = exact ? Math.exp(Math.min(logRatio, 0.0)) : accept ? 1.0 : 0.0;
+            coerceAcceptanceProbability((CoercableOperator) operator, acceptanceProbability);
+        }
+    }
+
+    private static void coerceAcceptanceProbability(final CoercableOperator operator, final double acceptanceProbability) {
+
+        if (operator.getMode() == CoercionMode.COERCION_OFF || Double.isNaN(acceptanceProbability))
+            return;
+
+        final double i = Math.log(operator.getOperationCount());
+        final double p = operator.getCoercableParameter();
+        final double newP = p + (1.0 / (i + 1.0)) * (acceptanceProbability - operator.getTargetAcceptanceProbability());
+
+        if (newP > -Double.MAX_VALUE && newP < Double.MAX_VALUE)
+            operator.setCoercableParameter(newP);
+    }
+
+    private void log(final long state) {
+        for (final Logger logger : loggers)
+            logger.log(state);
+    }
+
+    public long getCurrentState() {
+        return currentState;
+    }
+
+    public double getCurrentLogPosterior() {
+        return currentLogPosterior;
+    }
+
+    public OperatorSchedule getSchedule() {
+        return schedule;
+    }
+
+}
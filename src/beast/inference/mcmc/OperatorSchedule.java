@@ -0,0 +1,103 @@
+/*
+ * OperatorSchedule.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.mcmc;
+
+import beast.inference.operation.Operator;
+import beast.math.Random;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses operators in proportion to their weights.
+ * Uses Vose's alias method so that each choice takes constant time regardless of the number of operators.
+ *
+ * @author Arman Bilge
+ */
+public final class OperatorSchedule {
+
+    private final Operator[] operators;
+    private final double[] probability;
+    private final int[] alias;
+
+    public OperatorSchedule(final Operator... operators) {
+
+        if (operators.length == 0)
+            throw new IllegalArgumentException("Schedule must have at least one operator.");
+
+        this.operators = operators.clone();
+        final int n = this.operators.length;
+        probability = new double[n];
+        alias = new int[n];
+
+        final double totalWeight = Arrays.stream(this.operators).mapToDouble(Operator::getWeight).sum();
+        final double[] scaled = Arrays.stream(this.operators).mapToDouble(op -> op.getWeight() * n / totalWeight).toArray();
+
+        final int[] small = new int[n];
+        final int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; ++i) {
+            if (scaled[i] < 1.0)
+                small[smallCount++] = i;
+            else
+                large[largeCount++] = i;
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            final int s = small[--smallCount];
+            final int l = large[--largeCount];
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+            if (scaled[l] < 1.0)
+                small[smallCount++] = l;
+            else
+                large[largeCount++] = l;
+        }
+
+        // whatever remains is only off from 1 by rounding error
+        while (largeCount > 0) {
+            final int l = large[--largeCount];
+            probability[l] = 1.0;
+            alias[l] = l;
+        }
+        while (smallCount > 0) {
+            final int s = small[--smallCount];
+            probability[s] = 1.0;
+            alias[s] = s;
+        }
+    }
+
+    /**
+     * @return an operator chosen at random according to the weights
+     */
+    public Operator nextOperator() {
+        final int column = Random.nextInt(operators.length);
+        return Random.nextDouble() < probability[column] ? operators[column] : operators[alias[column]];
+    }
+
+    public List<Operator> getOperators() {
+        return Collections.unmodifiableList(Arrays.asList(operators));
+    }
+
+}
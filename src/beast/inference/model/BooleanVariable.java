@@ -0,0 +1,302 @@
+/*
+ * BooleanVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import beast.inference.logging.LogColumn;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A variable of booleans, for example indicators.
+ * Values are set, checked against bounds and stored without boxing.
+ * A lower limit of true fixes a value to true and an upper limit of false fixes it to false;
+ * these are cached as scalars while the same limits apply to every value, and otherwise as bitsets,
+ * allocated only if some value is actually fixed, so that even very long indicator vectors stay compact.
+ *
+ * @author Arman Bilge
+ */
+public abstract class BooleanVariable extends Variable<Boolean> {
+
+    private final IntersectionBounds<Boolean> bounds;
+    // the limits of every value, used while the bitsets are null
+    private boolean lowerLimit = false;
+    private boolean upperLimit = true;
+    // the values fixed to true or to false, null if there are none
+    private long[] fixedTrue = null;
+    private long[] fixedFalse = null;
+
+    protected BooleanVariable(final String name, final int dimension) {
+        super(name, dimension);
+        bounds = new IntersectionBounds<>(getDimension(), Boolean::compare, false, true);
+    }
+
+    public Boolean getValue(final int index) {
+        return getBooleanValue(index);
+    }
+
+    public abstract boolean getBooleanValue(int index);
+
+    @Override
+    public Stream<Boolean> getValues() {
+        return IntStream.range(0, getDimension()).mapToObj(this::getBooleanValue);
+    }
+
+    /**
+     * @return the number of values that are true
+     */
+    public int getTrueCount() {
+        return (int) IntStream.range(0, getDimension()).filter(this::getBooleanValue).count();
+    }
+
+    public final void setValue(final int index, final boolean value) {
+        if (!trySetValue(index, value))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a value only if it is within bounds, without boxing or throwing.
+     *
+     * @return true if the value was set, false if it was out-of-bounds and the variable is unchanged
+     */
+    public final boolean trySetValue(final int index, final boolean value) {
+        if (!inBounds(index, value))
+            return false;
+        setVariableValue(index, value);
+        fireVariableChanged(index);
+        return true;
+    }
+
+    @Override
+    protected final void setVariableValue(final int index, final Boolean value) {
+        setVariableValue(index, value.booleanValue());
+    }
+
+    protected abstract void setVariableValue(int index, boolean value);
+
+    public final void setValues(final boolean... values) {
+        if (values.length != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        setValues(0, values, 0, values.length);
+    }
+
+    /**
+     * Sets a range of values of this variable without boxing.
+     * All new values are checked against the bounds before any are set,
+     * and a single change event covering the range is fired.
+     *
+     * @param index the first index of this variable to set
+     * @param values the source array
+     * @param offset the position of the first new value in the source array
+     * @param length the number of values to set
+     */
+    public final void setValues(final int index, final boolean[] values, final int offset, final int length) {
+        if (!trySetValues(index, values, offset, length))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a range of values only if all of them are within bounds, without boxing or throwing.
+     *
+     * @return true if the values were set, false if any was out-of-bounds and the variable is unchanged
+     * @see #setValues(int, boolean[], int, int)
+     */
+    public final boolean trySetValues(final int index, final boolean[] values, final int offset, final int length) {
+        if (index < 0 || length < 0 || index + length > getDimension())
+            throw new IndexOutOfBoundsException("Range [" + index + ", " + (index + length) + ") is outside of variable.");
+        for (int i = 0; i < length; ++i)
+            if (!inBounds(index + i, values[offset + i]))
+                return false;
+        setVariableValues(index, values, offset, length);
+        fireVariableChanged(index, length);
+        return true;
+    }
+
+    @Override
+    protected final void setVariableValues(final Stream<Boolean> values) {
+        final Boolean[] boxed = values.toArray(Boolean[]::new);
+        if (boxed.length != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        final boolean[] newValues = new boolean[boxed.length];
+        for (int i = 0; i < boxed.length; ++i)
+            newValues[i] = boxed[i];
+        setVariableValues(0, newValues, 0, newValues.length);
+    }
+
+    protected abstract void setVariableValues(int index, boolean[] values, int offset, int length);
+
+    public final void fill(final boolean value) {
+        for (int i = 0; i < getDimension(); ++i)
+            if (!inBounds(i, value))
+                throw new IllegalArgumentException("Value is out-of-bounds.");
+        for (int i = 0; i < getDimension(); ++i)
+            setVariableValue(i, value);
+        fireVariableChanged();
+    }
+
+    public final void setAll(final IntPredicate generator) {
+        final boolean[] values = new boolean[getDimension()];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = generator.test(i);
+        setValues(values);
+    }
+
+    /**
+     * Checks a value against the cached limits, without boxing.
+     */
+    public final boolean inBounds(final int index, final boolean value) {
+        if (value ? !upperLimit : lowerLimit)
+            return false;
+        final long[] fixed = value ? fixedFalse : fixedTrue;
+        return fixed == null || ((fixed[index >>> 6] >>> index) & 1L) == 0;
+    }
+
+    @Override
+    protected final boolean inBounds(final int index, final Boolean value) {
+        return inBounds(index, value.booleanValue());
+    }
+
+    @Override
+    public final Bounds<Boolean> getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public final void addBounds(final Bounds<Boolean> bounds) {
+        this.bounds.addBounds(bounds);
+        // limits are only cached per value if they differ between values
+        if (this.bounds.isUniform()) {
+            lowerLimit = this.bounds.getLowerLimit(0);
+            upperLimit = this.bounds.getUpperLimit(0);
+            fixedTrue = null;
+            fixedFalse = null;
+        } else {
+            long[] fixedTrue = null;
+            long[] fixedFalse = null;
+            for (int i = 0; i < getDimension(); ++i) {
+                if (this.bounds.getLowerLimit(i)) {
+                    if (fixedTrue == null)
+                        fixedTrue = new long[(getDimension() + 63) >>> 6];
+                    fixedTrue[i >>> 6] |= 1L << i;
+                }
+                if (!this.bounds.getUpperLimit(i)) {
+                    if (fixedFalse == null)
+                        fixedFalse = new long[(getDimension() + 63) >>> 6];
+                    fixedFalse[i >>> 6] |= 1L << i;
+                }
+            }
+            lowerLimit = false;
+            upperLimit = true;
+            this.fixedTrue = fixedTrue;
+            this.fixedFalse = fixedFalse;
+        }
+    }
+
+    public final class BooleanBounds implements Bounds<Boolean> {
+
+        // null if the same limits apply in every dimension
+        private final boolean[] lower;
+        private final boolean[] upper;
+        private final boolean uniformLower;
+        private final boolean uniformUpper;
+
+        public BooleanBounds(final boolean[] lower, final boolean[] upper) {
+            if (lower.length != getDimension() || upper.length != getDimension())
+                throw new IllegalArgumentException("Wrong number of dimensions.");
+            if (IntStream.range(0, getDimension()).anyMatch(i -> lower[i] && !upper[i]))
+                throw new IllegalArgumentException("Upper bound must be greater than or equal to lower bound.");
+            this.lower = lower;
+            this.upper = upper;
+            uniformLower = false;
+            uniformUpper = true;
+        }
+
+        public BooleanBounds(final boolean lower, final boolean upper) {
+            if (lower && !upper)
+                throw new IllegalArgumentException("Upper bound must be greater than or equal to lower bound.");
+            this.lower = null;
+            this.upper = null;
+            uniformLower = lower;
+            uniformUpper = upper;
+        }
+
+        @Override
+        public Boolean getUpperLimit(int dimension) {
+            return upper == null ? uniformUpper : upper[dimension];
+        }
+
+        @Override
+        public Stream<Boolean> getUpperLimits() {
+            return IntStream.range(0, getDimension()).mapToObj(this::getUpperLimit);
+        }
+
+        @Override
+        public Boolean getLowerLimit(int dimension) {
+            return lower == null ? uniformLower : lower[dimension];
+        }
+
+        @Override
+        public Stream<Boolean> getLowerLimits() {
+            return IntStream.range(0, getDimension()).mapToObj(this::getLowerLimit);
+        }
+
+        @Override
+        public int getDimension() {
+            return BooleanVariable.this.getDimension();
+        }
+    }
+
+    @Override
+    public Collection<LogColumn> getColumns() {
+        return Collections.unmodifiableList(
+                IntStream.range(0, getDimension())
+                        .mapToObj(Column::new)
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * Logs a boolean as 1 or 0.
+     */
+    private final class Column extends LogColumn<Boolean> {
+
+        private final int dimension;
+
+        public Column(final int dimension) {
+            super(getName() + "[" + dimension + "]");
+            this.dimension = dimension;
+        }
+
+        @Override
+        protected String formatValue(final Boolean value) {
+            return value ? "1" : "0";
+        }
+
+        @Override
+        protected Boolean getValue() {
+            return BooleanVariable.this.getValue(dimension);
+        }
+    }
+
+}
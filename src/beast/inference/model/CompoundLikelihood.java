@@ -24,14 +24,21 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
 /**
  * A likelihood function which is simply the product of a set of likelihood functions.
+ * <p/>
+ * The time each likelihood takes to calculate and how often it is zero are measured as the chain runs.
+ * Likelihoods that are cheap and often zero are evaluated first, so that the rest can be skipped.
+ * In parallel, the likelihoods that need recalculating are packed by cost across the workers,
+ * unless the work is measured to be less than the overhead of dispatching it.
+ * Given a lower bound, evaluation stops as soon as the likelihoods evaluated so far, together with the maxima
+ * of the rest, prove that the log likelihood is below it.
+ * <p/>
+ * Whatever order the likelihoods are evaluated in, and however many workers they are spread across,
+ * their log likelihoods and gradients are summed in the order they were added,
+ * so that results are reproducible at any level of parallelism.
  *
  * @author Alexei Drummond
  * @author Andrew Rambaut
@@ -39,18 +46,58 @@ import java.util.concurrent.TimeUnit;
  */
 public final class CompoundLikelihood extends Likelihood {
 
-    private final int threadCount;
-    private final boolean unroll;
+    // evaluations between reorderings of the likelihoods by their costs
+    private static final int REORDER_INTERVAL = 256;
+    // weight of the latest measurement in the moving averages of times
+    private static final double SMOOTHING = 0.1;
+    private static final double INITIAL_DISPATCH_OVERHEAD = 10000.0;
+    // the most blocks of likelihoods whose gradients are accumulated separately, whatever the number of workers
+    private static final int GRADIENT_BLOCKS = 64;
 
-    private final ExecutorService pool;
+    private final boolean parallel;
+    private final boolean unroll;
 
     private final ArrayList<Likelihood> likelihoods = new ArrayList<>();
 
     private final ArrayList<Likelihood> earlyLikelihoods = new ArrayList<>();
     private final ArrayList<Likelihood> lateLikelihoods = new ArrayList<>();
 
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<>();
+    private final Child[] children;
+    private final Child[] earlyChildren;
+    private final Child[] lateChildren;
+    private final Child[] lateOrder;
+    // the sums of the maximum log likelihoods of the children from each position on, in evaluation order
+    private final double[] earlyMaxima;
+    private final double[] lateMaxima;
+    private final double maximumLogLikelihood;
+    private long evaluations = 0;
+
+    // reused for each parallel evaluation to pack the late likelihoods that need recalculating
+    private final Child[] dirtyChildren;
+    private final Child[] packedChildren;
+    private final int[] bins;
+    private final double[] binCosts;
+    private final int[] binEnds;
+    private final long[] binTimes;
+    private double dispatchOverhead = INITIAL_DISPATCH_OVERHEAD;
+    // whether the current evaluation of some children stopped as soon as the total was known to be below the bound
+    private boolean stopped;
+    private final IntConsumer binEvaluator;
 
+    // one accumulator per block of consecutive likelihoods, each filled by a single worker (or only the first,
+    // reused for every block, if single threaded) and reused for as long as gradients with the same layout are requested
+    private final Gradient[] gradients;
+    private Gradient gradient;
+    private final int gradientBlockSize;
+    private final IntConsumer gradientEvaluator;
+    private double chain;
+
+    /**
+     * @param unroll whether to add the children of compound likelihoods directly
+     * @param threads any non-zero value to evaluate the likelihoods in parallel on the shared {@link LikelihoodExecutor}
+     * (a negative value only if there is more than one likelihood)
+     * @param likelihoods the likelihoods
+     */
     public CompoundLikelihood(final boolean unroll, final int threads, final Likelihood... likelihoods) {
 
         super(likelihoods[0].getModel(), Arrays.stream(likelihoods).map(Likelihood::getModel).skip(1).toArray(Model[]::new));
@@ -58,22 +105,39 @@ public final class CompoundLikelihood extends Likelihood {
         this.unroll = unroll;
         Arrays.stream(likelihoods).forEach(this::addLikelihood);
 
-        if (threads < 0 && this.likelihoods.size() > 1)
-            // asking for an automatic threadpool size and there is more than one likelihood to compute
-            threadCount = this.likelihoods.size();
-        else if (threads > 0)
-            threadCount = threads;
-        else // no thread pool requested or only one likelihood
-            threadCount = 0;
-
-        if (threadCount > 0)
-            pool = Executors.newFixedThreadPool(threadCount, r -> {
-                final Thread t = Executors.defaultThreadFactory().newThread(r);
-                t.setDaemon(true); // Use daemon threads to prevent hangup on program termination
-                return t;
-            });
-        else
-            pool = null;
+        if (threads < 0)
+            // asking for automatic parallelism and there is more than one likelihood to compute
+            parallel = this.likelihoods.size() > 1;
+        else // parallel only if requested
+            parallel = threads > 0;
+
+        children = this.likelihoods.stream().map(Child::new).toArray(Child[]::new);
+        earlyChildren = Arrays.stream(children).filter(c -> earlyLikelihoods.contains(c.likelihood)).toArray(Child[]::new);
+        lateChildren = Arrays.stream(children).filter(c -> lateLikelihoods.contains(c.likelihood)).toArray(Child[]::new);
+        lateOrder = lateChildren.clone();
+        earlyMaxima = new double[earlyChildren.length + 1];
+        lateMaxima = new double[lateChildren.length + 1];
+        sumMaxima(earlyChildren, earlyMaxima);
+        sumMaxima(lateOrder, lateMaxima);
+        maximumLogLikelihood = earlyMaxima[0] + lateMaxima[0];
+
+        final int n = lateChildren.length;
+        final int maxBins = Math.max(1, Math.min(n, LikelihoodExecutor.getParallelism()));
+        dirtyChildren = new Child[n];
+        packedChildren = new Child[n];
+        bins = new int[n];
+        binCosts = new double[maxBins];
+        binEnds = new int[maxBins];
+        binTimes = new long[maxBins];
+        binEvaluator = b -> {
+            final long start = System.nanoTime();
+            for (int i = b == 0 ? 0 : binEnds[b - 1]; i < binEnds[b]; ++i)
+                packedChildren[i].getLogLikelihood(Double.NEGATIVE_INFINITY);
+            binTimes[b] = System.nanoTime() - start;
+        };
+        gradientBlockSize = (children.length + GRADIENT_BLOCKS - 1) / GRADIENT_BLOCKS;
+        gradients = new Gradient[(children.length + gradientBlockSize - 1) / gradientBlockSize];
+        gradientEvaluator = b -> calculateBlockGradient(b, b);
     }
 
     public CompoundLikelihood(final int threads, final Likelihood... likelihoods) {
@@ -95,10 +159,8 @@ public final class CompoundLikelihood extends Likelihood {
                 if (likelihood.evaluateEarly()) {
                     earlyLikelihoods.add(likelihood);
                 } else {
-                    // late likelihood list is used to evaluate them if the thread pool is not being used...
+                    // late likelihoods are evaluated after the early ones, in parallel if requested
                     lateLikelihoods.add(likelihood);
-                    if (pool != null)
-                        likelihoodCallers.add(likelihood::getLogLikelihood);
                 }
             }
         }
@@ -108,40 +170,124 @@ public final class CompoundLikelihood extends Likelihood {
         return Collections.unmodifiableList(likelihoods);
     }
 
+    @Override
+    public double getMaximumLogLikelihood() {
+        return maximumLogLikelihood;
+    }
+
     @Override
     public double calculateLogLikelihood() {
+        return calculateLogLikelihood(Double.NEGATIVE_INFINITY);
+    }
+
+    @Override
+    protected double calculateLogLikelihood(final double lowerBound) {
+
+        if (++evaluations % REORDER_INTERVAL == 0) {
+            sortByCostPerRejection(earlyChildren);
+            sortByCostPerRejection(lateOrder);
+            sumMaxima(earlyChildren, earlyMaxima);
+            sumMaxima(lateOrder, lateMaxima);
+        }
 
-        double logLikelihood = evaluateLikelihoods(earlyLikelihoods);
+        stopped = false;
+        final double logLikelihood = evaluateChildren(earlyChildren, earlyMaxima, 0.0, lowerBound - lateMaxima[0]);
 
         if (logLikelihood == Double.NEGATIVE_INFINITY)
             return Double.NEGATIVE_INFINITY;
 
-        if (pool == null) // Single threaded
-            logLikelihood += evaluateLikelihoods(lateLikelihoods);
-        else
-            logLikelihood += evaluateCallers(likelihoodCallers);
+        if (stopped || logLikelihood < lowerBound - lateMaxima[0]) // the late likelihoods cannot make up the difference
+            return stopEarly(logLikelihood + lateMaxima[0], lowerBound);
 
-        return logLikelihood;
+        final double total;
+        if (parallel)
+            total = logLikelihood + evaluateParallel();
+        else // Single threaded
+            total = evaluateChildren(lateOrder, lateMaxima, logLikelihood, lowerBound);
+
+        if (total == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        if (stopped)
+            return stopEarly(total, lowerBound);
+
+        // every child is known, so the exact total is summed in the same way however it was evaluated
+        return sumInOrder(children);
+    }
+
+    /**
+     * Sums the known log likelihoods of the children in order, with compensation for rounding errors.
+     */
+    private static double sumInOrder(final Child[] children) {
+        double sum = 0.0;
+        double compensation = 0.0;
+        for (final Child child : children) {
+            final double l = child.likelihood.getLogLikelihood();
+            final double t = sum + l;
+            if (Math.abs(sum) >= Math.abs(l))
+                compensation += (sum - t) + l;
+            else
+                compensation += (l - t) + sum;
+            sum = t;
+        }
+        return sum + compensation;
     }
 
     @Override
     protected void calculateGradient(final Gradient gradient, final double chain) {
-        if (pool == null) { // Single threaded
-            likelihoods.forEach(l -> l.calculateGradient(gradient, chain));
-        } else {
-            likelihoods.forEach(l -> pool.submit(() -> l.calculateGradient(gradient, chain)));
-            try {
-                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
-            } catch (final InterruptedException ex) {
-                throw new RuntimeException(ex);
+        // the blocks fill their own gradients without contention, and these are added in a fixed order,
+        // so that the result is the same whether or not the blocks are evaluated in parallel
+        this.gradient = gradient;
+        this.chain = chain;
+        try {
+            if (parallel) {
+                LikelihoodExecutor.invoke(gradients.length, gradientEvaluator);
+                for (final Gradient g : gradients)
+                    gradient.addGradient(g);
+            } else { // Single threaded, so each block is added as soon as it is filled and one accumulator suffices
+                for (int b = 0; b < gradients.length; ++b)
+                    gradient.addGradient(calculateBlockGradient(b, 0));
             }
+        } finally {
+            this.gradient = null;
         }
     }
 
-    private static double evaluateLikelihoods(final List<Likelihood> likelihoods) {
+    /**
+     * Fills an accumulator with the gradient of a block of likelihoods.
+     *
+     * @param block the block of likelihoods
+     * @param accumulator the accumulator to fill
+     * @return the filled accumulator
+     */
+    private Gradient calculateBlockGradient(final int block, final int accumulator) {
+        Gradient g = gradients[accumulator];
+        if (g == null || !g.hasLayoutOf(gradient))
+            gradients[accumulator] = g = new Gradient(gradient);
+        else
+            g.clear();
+        final int end = Math.min((block + 1) * gradientBlockSize, children.length);
+        for (int i = block * gradientBlockSize; i < end; ++i)
+            children[i].likelihood.calculateGradient(g, chain);
+        return g;
+    }
+
+    @Override
+    protected void calculateHessianDiagonal(final Gradient diagonal, final double chain) {
+        for (final Child child : children)
+            child.likelihood.calculateHessianDiagonal(diagonal, chain);
+    }
+
+    @Override
+    protected void calculateHessianVectorProduct(final Gradient vector, final Gradient product, final double chain) {
+        for (final Child child : children)
+            child.likelihood.calculateHessianVectorProduct(vector, product, chain);
+    }
+
+    private static double evaluateChildren(final Child[] children, final int count) {
         double logLikelihood = 0.0;
-        for (Likelihood likelihood : likelihoods) {
-            final double l = likelihood.getLogLikelihood();
+        for (int i = 0; i < count; ++i) {
+            final double l = children[i].getLogLikelihood(Double.NEGATIVE_INFINITY);
             if (l == Double.NEGATIVE_INFINITY) // if likelihood is zero then short circuit the rest
                 return Double.NEGATIVE_INFINITY;
             logLikelihood += l;
@@ -149,17 +295,111 @@ public final class CompoundLikelihood extends Likelihood {
         return logLikelihood;
     }
 
-    private double evaluateCallers(final List<? extends Callable<Double>> callers) {
-        try {
-            return pool.invokeAll(callers).stream().mapToDouble(f -> {
-                try {
-                    return f.get();
-                } catch (final InterruptedException | ExecutionException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }).sum();
-        } catch (final InterruptedException ex) {
-            throw new RuntimeException(ex);
+    /**
+     * Adds the log likelihoods of the children to a partial sum, stopping as soon as the sum and the maxima of
+     * the remaining children prove that the total is less than the lower bound.
+     *
+     * @return the total, or if stopped early an upper bound on it
+     */
+    private double evaluateChildren(final Child[] children, final double[] maxima,
+                                           double logLikelihood, final double lowerBound) {
+        for (int i = 0; i < children.length; ++i) {
+            final double bound = lowerBound - logLikelihood - maxima[i + 1];
+            final double l = children[i].getLogLikelihood(bound);
+            if (l == Double.NEGATIVE_INFINITY) // if likelihood is zero then short circuit the rest
+                return Double.NEGATIVE_INFINITY;
+            logLikelihood += l;
+            if (l < bound) {
+                stopped = true;
+                return logLikelihood + maxima[i + 1];
+            }
+        }
+        return logLikelihood;
+    }
+
+    private static void sumMaxima(final Child[] children, final double[] maxima) {
+        maxima[children.length] = 0.0;
+        for (int i = children.length - 1; i >= 0; --i)
+            maxima[i] = maxima[i + 1] + children[i].maximum;
+    }
+
+    /**
+     * Evaluates the late likelihoods in parallel.
+     * Only those that need recalculating are submitted, packed across the workers by their measured costs;
+     * the cached values of the rest are summed inline.
+     * The work is done on the calling thread if there is too little of it to be worth dispatching.
+     */
+    private double evaluateParallel() {
+        int dirtyCount = 0;
+        double cost = 0.0;
+        for (final Child child : lateOrder) {
+            if (!child.likelihood.getLikelihoodKnown()) {
+                dirtyChildren[dirtyCount++] = child;
+                cost += child.time;
+            }
+        }
+
+        final int binCount = Math.min(dirtyCount, binCosts.length);
+        if (binCount > 1 && cost / binCount + dispatchOverhead < cost) {
+            pack(dirtyCount, binCount);
+            final long start = System.nanoTime();
+            LikelihoodExecutor.invoke(binCount, binEvaluator);
+            long longest = 0;
+            for (int b = 0; b < binCount; ++b)
+                longest = Math.max(longest, binTimes[b]);
+            final long overhead = System.nanoTime() - start - longest;
+            dispatchOverhead += SMOOTHING * (Math.max(overhead, 0) - dispatchOverhead);
+        } else if (evaluateChildren(dirtyChildren, dirtyCount) == Double.NEGATIVE_INFINITY) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double logLikelihood = 0.0;
+        for (final Child child : lateChildren)
+            logLikelihood += child.getLogLikelihood(Double.NEGATIVE_INFINITY);
+        return logLikelihood;
+    }
+
+    /**
+     * Packs the dirty children into bins of similar total cost, most expensive first,
+     * each bin going to the least loaded worker.
+     */
+    private void pack(final int count, final int binCount) {
+        for (int i = 1; i < count; ++i) {
+            final Child child = dirtyChildren[i];
+            int j = i;
+            for (; j > 0 && dirtyChildren[j - 1].time < child.time; --j)
+                dirtyChildren[j] = dirtyChildren[j - 1];
+            dirtyChildren[j] = child;
+        }
+
+        Arrays.fill(binCosts, 0, binCount, 0.0);
+        Arrays.fill(binEnds, 0, binCount, 0);
+        for (int i = 0; i < count; ++i) {
+            int lightest = 0;
+            for (int b = 1; b < binCount; ++b)
+                if (binCosts[b] < binCosts[lightest])
+                    lightest = b;
+            binCosts[lightest] += dirtyChildren[i].time;
+            bins[i] = lightest;
+            ++binEnds[lightest];
+        }
+
+        for (int b = 1; b < binCount; ++b)
+            binEnds[b] += binEnds[b - 1];
+        for (int i = count - 1; i >= 0; --i)
+            packedChildren[--binEnds[bins[i]]] = dirtyChildren[i];
+        for (int b = 0; b < binCount; ++b)
+            binEnds[b] = b + 1 < binCount ? binEnds[b + 1] : count;
+    }
+
+    private static void sortByCostPerRejection(final Child[] children) {
+        for (int i = 1; i < children.length; ++i) {
+            final Child child = children[i];
+            final double cost = child.getCostPerRejection();
+            int j = i;
+            for (; j > 0 && children[j - 1].getCostPerRejection() > cost; --j)
+                children[j] = children[j - 1];
+            children[j] = child;
         }
     }
 
@@ -183,4 +423,42 @@ public final class CompoundLikelihood extends Likelihood {
         // Nothing to do
     }
 
+    /**
+     * A likelihood together with measurements of its calculations.
+     */
+    private static final class Child {
+
+        private final Likelihood likelihood;
+        private final double maximum;
+        private double time = 0.0; // moving average of nanoseconds per calculation
+        private long calculations = 0;
+        private long rejections = 0;
+
+        private Child(final Likelihood likelihood) {
+            this.likelihood = likelihood;
+            maximum = likelihood.getMaximumLogLikelihood();
+        }
+
+        private double getLogLikelihood(final double lowerBound) {
+            if (likelihood.getLikelihoodKnown())
+                return likelihood.getLogLikelihood();
+            final long start = System.nanoTime();
+            final double logLikelihood = likelihood.getLogLikelihood(lowerBound);
+            final long t = System.nanoTime() - start;
+            time = calculations == 0 ? t : time + SMOOTHING * (t - time);
+            ++calculations;
+            if (logLikelihood == Double.NEGATIVE_INFINITY || logLikelihood < lowerBound)
+                ++rejections;
+            return logLikelihood;
+        }
+
+        /**
+         * @return the expected time spent calculating per zero likelihood (or one below the bound) found
+         */
+        private double getCostPerRejection() {
+            return time * (calculations + 2) / (rejections + 1);
+        }
+
+    }
+
 }
@@ -0,0 +1,172 @@
+/*
+ * DependencyPlan.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import beast.inference.model.Variable.ChangeEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A frozen snapshot of the graph of models, variables and their listeners.
+ * For every variable it holds a bitset of all the models and all the other listeners
+ * (for example likelihoods) downstream of that variable, so that a change is propagated
+ * in a single pass over the bitset, without recursion and with each listener notified only once.
+ * Once compiled, the listeners and sub-models of the participating models and variables can no longer change.
+ *
+ * @author Arman Bilge
+ */
+public final class DependencyPlan {
+
+    private final Model<?>[] models;
+    private final VariableListener[] listeners;
+
+    private final long[][] affectedModels;
+    private final long[][] affectedListeners;
+
+    private DependencyPlan(final List<Variable<?>> variables) {
+
+        final Map<Model<?>, Integer> modelIndices = new IdentityHashMap<>();
+        final Map<VariableListener, Integer> listenerIndices = new IdentityHashMap<>();
+        final List<Model<?>> models = new ArrayList<>();
+        final List<VariableListener> listeners = new ArrayList<>();
+
+        final BitSet[] modelSets = new BitSet[variables.size()];
+        final BitSet[] listenerSets = new BitSet[variables.size()];
+
+        for (int i = 0; i < variables.size(); ++i) {
+            modelSets[i] = new BitSet();
+            listenerSets[i] = new BitSet();
+            for (final VariableListener listener : variables.get(i).getVariableListeners())
+                visit(listener, modelSets[i], listenerSets[i], modelIndices, models, listenerIndices, listeners);
+        }
+
+        this.models = models.toArray(new Model<?>[models.size()]);
+        this.listeners = listeners.toArray(new VariableListener[listeners.size()]);
+
+        affectedModels = new long[variables.size()][];
+        affectedListeners = new long[variables.size()][];
+        for (int i = 0; i < variables.size(); ++i) {
+            affectedModels[i] = modelSets[i].toLongArray();
+            affectedListeners[i] = listenerSets[i].toLongArray();
+        }
+    }
+
+    private static void visit(final VariableListener listener,
+                              final BitSet modelSet, final BitSet listenerSet,
+                              final Map<Model<?>, Integer> modelIndices, final List<Model<?>> models,
+                              final Map<VariableListener, Integer> listenerIndices, final List<VariableListener> listeners) {
+
+        if (listener instanceof Model) {
+            final Model<?> model = (Model<?>) listener;
+            final int index = modelIndices.computeIfAbsent(model, m -> {
+                models.add(m);
+                return models.size() - 1;
+            });
+            if (modelSet.get(index))
+                return;
+            modelSet.set(index);
+            for (final ModelChangeListener changeListener : model.getChangeListeners())
+                visit(changeListener, modelSet, listenerSet, modelIndices, models, listenerIndices, listeners);
+        } else {
+            final int index = listenerIndices.computeIfAbsent(listener, l -> {
+                listeners.add(l);
+                return listeners.size() - 1;
+            });
+            listenerSet.set(index);
+        }
+    }
+
+    /**
+     * Compiles the dependencies of all variables contained in the given model and its sub-models.
+     * This freezes every participating model and variable.
+     *
+     * @param root the root model
+     * @return the plan
+     */
+    public static DependencyPlan compile(final Model<?> root) {
+
+        final Map<Object, Boolean> visited = new IdentityHashMap<>();
+        final List<Variable<?>> variables = new ArrayList<>();
+        collectVariables(root, visited, variables);
+
+        final DependencyPlan plan = new DependencyPlan(variables);
+
+        for (int i = 0; i < variables.size(); ++i)
+            variables.get(i).setPlan(plan, i);
+        for (int i = 0; i < plan.models.length; ++i)
+            plan.models[i].setPlan(plan, i);
+
+        return plan;
+    }
+
+    private static void collectVariables(final Model<?> model, final Map<Object, Boolean> visited, final List<Variable<?>> variables) {
+        if (visited.put(model, Boolean.TRUE) != null)
+            return;
+        for (final Variable<?> variable : model.getVariables())
+            if (visited.put(variable, Boolean.TRUE) == null)
+                variables.add(variable);
+        for (final Model<?> submodel : model.getModels())
+            collectVariables(submodel, visited, variables);
+    }
+
+    /**
+     * Marks every model downstream of a variable as dirty and notifies every other listener exactly once.
+     */
+    void fireVariableChanged(final int variable, final ChangeEvent event) {
+        final long[] modelBits = affectedModels[variable];
+        for (int w = 0; w < modelBits.length; ++w) {
+            long word = modelBits[w];
+            while (word != 0) {
+                models[(w << 6) + Long.numberOfTrailingZeros(word)].markDirty();
+                word &= word - 1;
+            }
+        }
+        final long[] bits = affectedListeners[variable];
+        for (int w = 0; w < bits.length; ++w) {
+            long word = bits[w];
+            while (word != 0) {
+                listeners[(w << 6) + Long.numberOfTrailingZeros(word)].handleVariableChanged(event);
+                word &= word - 1;
+            }
+        }
+    }
+
+    boolean isAffected(final int variable, final int model) {
+        final long[] bits = affectedModels[variable];
+        final int word = model >>> 6;
+        return word < bits.length && (bits[word] & (1L << model)) != 0;
+    }
+
+    public List<Model<?>> getModels() {
+        return Collections.unmodifiableList(Arrays.asList(models));
+    }
+
+    public List<VariableListener> getListeners() {
+        return Collections.unmodifiableList(Arrays.asList(listeners));
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * DerivedRealVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.DoubleStream;
+
+/**
+ * A real variable whose values are a deterministic function of other variables.
+ * When any input changes the derived variable is only marked stale (and fires a change);
+ * its values are recalculated the first time they are read afterwards, so an expensive
+ * function is evaluated at most once per change no matter how many consumers read it.
+ * Values may be read concurrently, for example by likelihoods evaluated in parallel:
+ * they are recalculated into a scratch array by one thread and only then published.
+ * The cached values are stored and restored like those of any other variable, so a derived
+ * variable must be added to a model alongside its inputs.
+ * Derived values cannot be set directly.
+ *
+ * @author Arman Bilge
+ */
+public abstract class DerivedRealVariable extends RealVariable implements VariableListener {
+
+    private final List<Variable<?>> inputs;
+
+    private double[] values;
+    private double[] scratch;
+    private final double[] storedValues;
+    private volatile boolean stale = true;
+    private boolean storedStale = true;
+
+    protected DerivedRealVariable(final String name, final int dimension, final Variable<?>... inputs) {
+        super(name, dimension);
+        this.inputs = Collections.unmodifiableList(Arrays.asList(inputs.clone()));
+        values = new double[dimension];
+        scratch = new double[dimension];
+        storedValues = new double[dimension];
+        for (final Variable<?> input : inputs)
+            input.addVariableListener(this);
+    }
+
+    /**
+     * Calculates the values of this variable from its inputs.
+     *
+     * @param values the array to write the values into
+     */
+    protected abstract void calculateValues(double[] values);
+
+    public final List<Variable<?>> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return true if the values will be recalculated when next read
+     */
+    public final boolean isStale() {
+        return stale;
+    }
+
+    private void update() {
+        if (stale) {
+            synchronized (this) {
+                if (stale) {
+                    calculateValues(scratch);
+                    final double[] tmp = values;
+                    values = scratch;
+                    scratch = tmp;
+                    // publishes the new values to threads that then see that they are not stale
+                    stale = false;
+                }
+            }
+        }
+    }
+
+    @Override
+    public final double getDoubleValue(final int index) {
+        update();
+        return values[index];
+    }
+
+    @Override
+    public final DoubleStream getDoubleValues() {
+        update();
+        return Arrays.stream(values);
+    }
+
+    @Override
+    public final void handleVariableChanged(final Variable.ChangeEvent change) {
+        stale = true;
+        fireVariableChanged();
+    }
+
+    @Override
+    protected final void setVariableValue(final int index, final double value) {
+        throw new UnsupportedOperationException("Derived variable " + getName() + " cannot be set.");
+    }
+
+    @Override
+    protected final void setVariableValues(final int index, final double[] values, final int offset, final int length) {
+        throw new UnsupportedOperationException("Derived variable " + getName() + " cannot be set.");
+    }
+
+    @Override
+    protected final void storeVariableValues() {
+        if (!stale)
+            System.arraycopy(values, 0, storedValues, 0, getDimension());
+        storedStale = stale;
+    }
+
+    @Override
+    protected final void restoreVariableValues() {
+        // copy rather than swap, so that the stored values remain valid if the next store is skipped
+        if (!storedStale)
+            System.arraycopy(storedValues, 0, values, 0, getDimension());
+        stale = storedStale;
+    }
+
+    /**
+     * @return the sum of the values of a variable
+     */
+    public static DerivedRealVariable sum(final String name, final RealVariable x) {
+        return new DerivedRealVariable(name, 1, x) {
+            @Override
+            protected void calculateValues(final double[] values) {
+                double sum = 0.0;
+                for (int i = 0; i < x.getDimension(); ++i)
+                    sum += x.getDoubleValue(i);
+                values[0] = sum;
+            }
+        };
+    }
+
+    /**
+     * @return the element-wise ratio of two variables of the same dimension
+     */
+    public static DerivedRealVariable ratio(final String name, final RealVariable numerator, final RealVariable denominator) {
+        if (numerator.getDimension() != denominator.getDimension())
+            throw new IllegalArgumentException("Variables must have the same dimension.");
+        return new DerivedRealVariable(name, numerator.getDimension(), numerator, denominator) {
+            @Override
+            protected void calculateValues(final double[] values) {
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = numerator.getDoubleValue(i) / denominator.getDoubleValue(i);
+            }
+        };
+    }
+
+    /**
+     * @return the element-wise exponential of a variable
+     */
+    public static DerivedRealVariable exp(final String name, final RealVariable x) {
+        return new DerivedRealVariable(name, x.getDimension(), x) {
+            @Override
+            protected void calculateValues(final double[] values) {
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = Math.exp(x.getDoubleValue(i));
+            }
+        };
+    }
+
+    /**
+     * @return a variable scaled so that its values sum to one
+     */
+    public static DerivedRealVariable normalize(final String name, final RealVariable x) {
+        return new DerivedRealVariable(name, x.getDimension(), x) {
+            @Override
+            protected void calculateValues(final double[] values) {
+                double sum = 0.0;
+                for (int i = 0; i < values.length; ++i) {
+                    values[i] = x.getDoubleValue(i);
+                    sum += values[i];
+                }
+                for (int i = 0; i < values.length; ++i)
+                    values[i] /= sum;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * FiniteDifferenceGradient.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import beast.math.MachineAccuracy;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Numerical gradients of a likelihood by central differences, for likelihoods without analytic gradients
+ * and for checking those with them.
+ * Each entry of each variable is perturbed in turn between a store and a restore of the likelihood's model;
+ * at a bound the difference is taken on one side only.
+ * <p/>
+ * Since storing and restoring the model would interfere with a pending proposal, the likelihood itself is only
+ * perturbed if no replicas are given. Replicas are independent copies of the likelihood (with variables of the same
+ * names), which are set to the likelihood's current values and then share out the entries across the workers of
+ * the {@link LikelihoodExecutor}. Without replicas, the likelihood's variables change while it is differentiated,
+ * so it must not be differentiated from within a parallel calculation (such as the gradient of a parallel
+ * {@link CompoundLikelihood}) whose other tasks may read them; that requires replicas.
+ *
+ * @author Arman Bilge
+ */
+public final class FiniteDifferenceGradient {
+
+    private static final double DEFAULT_RELATIVE_STEP = Math.cbrt(MachineAccuracy.EPSILON);
+
+    private final Likelihood likelihood;
+    private final RealVariable[] variables;
+    private final Likelihood[] replicas;
+    private final RealVariable[][] replicaVariables;
+    // whether the likelihood is perturbed itself, rather than only its replicas
+    private final boolean perturbsLikelihood;
+    // the current values of each variable, to copy to the replicas
+    private final double[][] values;
+    private final double relativeStep;
+
+    // the variable and index of each entry of the flat gradient
+    private final int[] entryVariables;
+    private final int[] entryIndices;
+    private final double[] derivatives;
+
+    public FiniteDifferenceGradient(final Likelihood likelihood, final RealVariable... variables) {
+        this(likelihood, DEFAULT_RELATIVE_STEP, Arrays.asList(likelihood), variables);
+    }
+
+    /**
+     * @param likelihood the likelihood
+     * @param relativeStep the step relative to the magnitude of each entry (or to one, if larger)
+     * @param replicas the independent copies of the likelihood to perturb
+     * @param variables the variables to differentiate with respect to
+     */
+    public FiniteDifferenceGradient(final Likelihood likelihood, final double relativeStep,
+                                    final List<? extends Likelihood> replicas, final RealVariable... variables) {
+        if (!(relativeStep > 0.0))
+            throw new IllegalArgumentException("Step must be positive.");
+        if (replicas.isEmpty())
+            throw new IllegalArgumentException("At least one replica is required.");
+        this.likelihood = likelihood;
+        this.variables = variables.clone();
+        this.relativeStep = relativeStep;
+        this.replicas = replicas.toArray(new Likelihood[replicas.size()]);
+        perturbsLikelihood = replicas.contains(likelihood);
+        values = new double[variables.length][];
+        for (int v = 0; v < variables.length; ++v)
+            values[v] = new double[variables[v].getDimension()];
+        replicaVariables = new RealVariable[this.replicas.length][];
+        for (int r = 0; r < this.replicas.length; ++r) {
+            if (this.replicas[r] == likelihood) {
+                replicaVariables[r] = this.variables;
+            } else {
+                replicaVariables[r] = new RealVariable[variables.length];
+                for (int v = 0; v < variables.length; ++v) {
+                    final Variable<?> var = findVariable(this.replicas[r].getModel(), variables[v].getName());
+                    if (!(var instanceof RealVariable) || var.getDimension() != variables[v].getDimension())
+                        throw new IllegalArgumentException("Replica has no matching variable " + variables[v].getName() + ".");
+                    replicaVariables[r][v] = (RealVariable) var;
+                }
+            }
+            for (final RealVariable var : replicaVariables[r])
+                if (!this.replicas[r].getModel().hasVariable(var))
+                    throw new IllegalArgumentException("Variable " + var.getName() + " is not in the model of the likelihood.");
+        }
+
+        final int dimension = Arrays.stream(variables).mapToInt(Variable::getDimension).sum();
+        entryVariables = new int[dimension];
+        entryIndices = new int[dimension];
+        derivatives = new double[dimension];
+        for (int v = 0, j = 0; v < variables.length; ++v) {
+            for (int i = 0; i < variables[v].getDimension(); ++i, ++j) {
+                entryVariables[j] = v;
+                entryIndices[j] = i;
+            }
+        }
+    }
+
+    private static Variable<?> findVariable(final Model<?> model, final String name) {
+        for (final Variable<?> var : model.getVariables())
+            if (var.getName().equals(name))
+                return var;
+        for (final Model<?> child : model.getModels()) {
+            final Variable<?> var = findVariable(child, name);
+            if (var != null)
+                return var;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the numerical gradient of the log likelihood.
+     *
+     * @param gradient the gradient to add to
+     * @param chain the factor to multiply the gradient by
+     */
+    public void calculateGradient(final Gradient gradient, final double chain) {
+        calculateDerivatives();
+        for (int j = 0; j < derivatives.length; ++j)
+            gradient.addDerivative(variables[entryVariables[j]], entryIndices[j], chain * derivatives[j]);
+    }
+
+    private void calculateDerivatives() {
+        if (perturbsLikelihood && LikelihoodExecutor.inParallelTask())
+            throw new IllegalStateException("Cannot perturb the likelihood within a parallel calculation; replicas are required.");
+        for (int v = 0; v < variables.length; ++v)
+            for (int i = 0; i < values[v].length; ++i)
+                values[v][i] = variables[v].getDoubleValue(i);
+        for (int r = 0; r < replicas.length; ++r) {
+            if (replicas[r] != likelihood) {
+                for (int v = 0; v < variables.length; ++v)
+                    replicaVariables[r][v].setValues(0, values[v], 0, values[v].length);
+            }
+        }
+        LikelihoodExecutor.invoke(replicas.length, r -> {
+            for (int j = r; j < derivatives.length; j += replicas.length)
+                derivatives[j] = differentiate(r, entryVariables[j], entryIndices[j]);
+        });
+    }
+
+    private double differentiate(final int r, final int v, final int i) {
+        final Likelihood replica = replicas[r];
+        final Model<?> model = replica.getModel();
+        final RealVariable var = replicaVariables[r][v];
+        final double x = var.getDoubleValue(i);
+        final double h = relativeStep * Math.max(1.0, Math.abs(x));
+
+        final double center = replica.getLogLikelihood();
+        model.storeState();
+        double upper = center;
+        double lower = center;
+        double width = 0.0;
+        if (var.trySetValue(i, x + h)) {
+            upper = replica.getLogLikelihood();
+            width += h;
+        }
+        if (var.trySetValue(i, x - h)) {
+            lower = replica.getLogLikelihood();
+            width += h;
+        }
+        model.restoreState();
+
+        if (width == 0.0)
+            throw new IllegalStateException("Cannot perturb " + var.getName() + "[" + i + "] within its bounds.");
+        return (upper - lower) / width;
+    }
+
+    /**
+     * Compares the analytic gradient of the likelihood with the numerical one.
+     *
+     * @return the comparison
+     */
+    public Comparison check() {
+        final Gradient analytic = likelihood.getGradient(new Gradient(variables));
+        calculateDerivatives();
+        final double[] a = new double[derivatives.length];
+        analytic.copyGradient(a, 0);
+        return new Comparison(a, derivatives.clone());
+    }
+
+    /**
+     * The analytic and numerical gradients of a likelihood, entry by entry.
+     */
+    public final class Comparison {
+
+        private final double[] analytic;
+        private final double[] numeric;
+
+        private Comparison(final double[] analytic, final double[] numeric) {
+            this.analytic = analytic;
+            this.numeric = numeric;
+        }
+
+        public double getAnalytic(final int j) {
+            return analytic[j];
+        }
+
+        public double getNumeric(final int j) {
+            return numeric[j];
+        }
+
+        /**
+         * @return the difference of the derivatives relative to their magnitude (or to one, if larger)
+         */
+        public double getError(final int j) {
+            return Math.abs(analytic[j] - numeric[j])
+                    / Math.max(1.0, Math.max(Math.abs(analytic[j]), Math.abs(numeric[j])));
+        }
+
+        public double getMaximumError() {
+            double max = 0.0;
+            for (int j = 0; j < analytic.length; ++j)
+                max = Math.max(max, getError(j));
+            return max;
+        }
+
+        /**
+         * @return the entries whose errors exceed the tolerance
+         */
+        public int[] getMismatches(final double tolerance) {
+            int count = 0;
+            final int[] mismatches = new int[analytic.length];
+            for (int j = 0; j < analytic.length; ++j)
+                if (!(getError(j) <= tolerance))
+                    mismatches[count++] = j;
+            return Arrays.copyOf(mismatches, count);
+        }
+
+        /**
+         * @return the name of the entry, such as x[2]
+         */
+        public String getLabel(final int j) {
+            return variables[entryVariables[j]].getName() + "[" + entryIndices[j] + "]";
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < analytic.length; ++j)
+                sb.append(getLabel(j)).append('\t').append(analytic[j]).append('\t').append(numeric[j])
+                        .append('\t').append(getError(j)).append('\n');
+            return sb.toString();
+        }
+
+    }
+
+}
@@ -21,37 +21,173 @@
 package beast.inference.model;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
 import java.util.stream.DoubleStream;
 import java.util.stream.Stream;
 
 /**
+ * The gradient with respect to an ordered set of real variables, laid out in a single flat array.
+ * Derivatives with respect to variables that are not part of the gradient are ignored, so that a likelihood
+ * can add all of its derivatives whichever variables are asked for, and read as zero.
+ * Indices are checked against the dimension of each variable, whether or not it is part of the gradient.
+ * A gradient can be cleared and reused, so that repeated calculations (e.g. the leapfrog steps of
+ * Hamiltonian Monte Carlo) do not allocate; it is not safe for use by multiple threads at once.
+ *
  * @author Arman Bilge
  */
 public final class Gradient {
 
-    private final Map<RealVariable, double[]> gradient = new ConcurrentHashMap<>();
-    private final Function<RealVariable, double[]> mapping = var -> new double[var.getDimension()];
+    private final RealVariable[] variables;
+    private final Map<RealVariable, Integer> offsets;
+    private final double[] gradient;
+
+    public Gradient(final RealVariable... variables) {
+        this.variables = variables.clone();
+        offsets = new IdentityHashMap<>(variables.length);
+        int offset = 0;
+        for (final RealVariable var : this.variables) {
+            if (offsets.put(var, offset) != null)
+                throw new IllegalArgumentException("Variable " + var.getName() + " is repeated.");
+            offset += var.getDimension();
+        }
+        gradient = new double[offset];
+    }
+
+    /**
+     * Creates an empty gradient with the same variables as another.
+     */
+    public Gradient(final Gradient gradient) {
+        variables = gradient.variables;
+        offsets = gradient.offsets;
+        this.gradient = new double[gradient.gradient.length];
+    }
+
+    /**
+     * @return the offset of the variable in the flat layout, or -1 if it is not part of this gradient
+     */
+    public final int getOffset(final RealVariable var) {
+        final Integer offset = offsets.get(var);
+        return offset != null ? offset : -1;
+    }
+
+    /**
+     * @return whether the other gradient shares this one's layout (i.e. was created from it or vice versa)
+     */
+    boolean hasLayoutOf(final Gradient gradient) {
+        return gradient.offsets == offsets;
+    }
+
+    public final boolean contains(final RealVariable var) {
+        return offsets.containsKey(var);
+    }
+
+    public final int getVariableCount() {
+        return variables.length;
+    }
+
+    public final RealVariable getVariable(final int i) {
+        return variables[i];
+    }
+
+    /**
+     * @return the total dimension of the variables
+     */
+    public final int getDimension() {
+        return gradient.length;
+    }
 
+    private static void checkIndex(final RealVariable var, final int index) {
+        if (index < 0 || index >= var.getDimension())
+            throw new IndexOutOfBoundsException("Index " + index + " is outside of variable " + var.getName() + ".");
+    }
+
+    /**
+     * Adds a derivative, which is ignored if the variable is not part of this gradient.
+     */
     public final void addDerivative(final RealVariable var, final int index, final double deriv) {
-        final double[] gradient = new double[var.getDimension()];
-        gradient[index] = deriv;
-        addGradient(var, gradient);
+        checkIndex(var, index);
+        final int offset = getOffset(var);
+        if (offset >= 0)
+            gradient[offset + index] += deriv;
     }
 
+    /**
+     * Adds the derivatives with respect to all entries of a variable,
+     * which are ignored if the variable is not part of this gradient.
+     */
     public final void addGradient(final RealVariable var, final double[] gradient) {
-        this.gradient.merge(var, gradient, (x, y) -> {
-            for (int i = 0; i < x.length; ++i)
-                y[i] += x[i];
-            return y;
-        });
+        if (gradient.length != var.getDimension())
+            throw new IllegalArgumentException("Gradient must have the dimension of variable " + var.getName() + ".");
+        final int offset = getOffset(var);
+        if (offset >= 0)
+            for (int i = 0; i < gradient.length; ++i)
+                this.gradient[offset + i] += gradient[i];
+    }
+
+    /**
+     * Adds all of another gradient to this one.
+     */
+    public final void addGradient(final Gradient gradient) {
+        if (hasLayoutOf(gradient)) {
+            for (int i = 0; i < this.gradient.length; ++i)
+                this.gradient[i] += gradient.gradient[i];
+        } else {
+            for (final RealVariable var : gradient.variables) {
+                final int from = gradient.getOffset(var);
+                final int to = getOffset(var);
+                if (to >= 0)
+                    for (int i = 0; i < var.getDimension(); ++i)
+                        this.gradient[to + i] += gradient.gradient[from + i];
+            }
+        }
+    }
+
+    /**
+     * @return the derivative, or zero if the variable is not part of this gradient
+     */
+    public final double getDerivative(final RealVariable var, final int index) {
+        checkIndex(var, index);
+        final int offset = getOffset(var);
+        return offset >= 0 ? gradient[offset + index] : 0.0;
+    }
+
+    /**
+     * @return whether every variable of the other gradient is also part of this one
+     */
+    public final boolean containsAll(final Gradient gradient) {
+        if (hasLayoutOf(gradient))
+            return true;
+        for (final RealVariable var : gradient.variables)
+            if (!contains(var))
+                return false;
+        return true;
+    }
+
+    /**
+     * Copies the whole gradient, in the order of its variables, into an array.
+     */
+    public final void copyGradient(final double[] destination, final int offset) {
+        System.arraycopy(gradient, 0, destination, offset, gradient.length);
+    }
+
+    public final DoubleStream getGradient() {
+        return Arrays.stream(gradient);
     }
 
     public final DoubleStream getGradient(final Stream<RealVariable> vars) {
-        return vars.map(v -> gradient.getOrDefault(v, new double[v.getDimension()]))
-                .flatMapToDouble(Arrays::stream);
+        return vars.flatMapToDouble(v -> {
+            final int offset = getOffset(v);
+            return offset >= 0 ? Arrays.stream(gradient, offset, offset + v.getDimension())
+                    : DoubleStream.generate(() -> 0.0).limit(v.getDimension());
+        });
+    }
+
+    /**
+     * Sets all derivatives to zero, so that the gradient can be reused.
+     */
+    public final void clear() {
+        Arrays.fill(gradient, 0.0);
     }
 
 }
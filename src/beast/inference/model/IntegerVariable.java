@@ -0,0 +1,252 @@
+/*
+ * IntegerVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A variable of integers, for example categories or counts.
+ * Values are set, checked against bounds and stored without boxing.
+ *
+ * @author Arman Bilge
+ */
+public abstract class IntegerVariable extends Variable<Integer> {
+
+    private final IntersectionBounds<Integer> bounds;
+    // the limits in every dimension, used while the per-dimension limits are null
+    private int lowerLimit = Integer.MIN_VALUE;
+    private int upperLimit = Integer.MAX_VALUE;
+    private int[] lowerLimits = null;
+    private int[] upperLimits = null;
+
+    protected IntegerVariable(final String name, final int dimension) {
+        super(name, dimension);
+        bounds = new IntersectionBounds<>(getDimension(), Integer::compare, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public Integer getValue(final int index) {
+        return getIntValue(index);
+    }
+
+    public abstract int getIntValue(int index);
+
+    @Override
+    public Stream<Integer> getValues() {
+        return getIntValues().boxed();
+    }
+
+    public abstract IntStream getIntValues();
+
+    public final void setValue(final int index, final int value) {
+        if (!trySetValue(index, value))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a value only if it is within bounds, without boxing or throwing.
+     *
+     * @return true if the value was set, false if it was out-of-bounds and the variable is unchanged
+     */
+    public final boolean trySetValue(final int index, final int value) {
+        if (!inBounds(index, value))
+            return false;
+        setVariableValue(index, value);
+        fireVariableChanged(index);
+        return true;
+    }
+
+    @Override
+    protected final void setVariableValue(final int index, final Integer value) {
+        setVariableValue(index, value.intValue());
+    }
+
+    protected abstract void setVariableValue(int index, int value);
+
+    public final void setValues(final IntStream values) {
+        setValues(values.toArray());
+    }
+
+    public final void setValues(final int... values) {
+        if (values.length != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        setValues(0, values, 0, values.length);
+    }
+
+    /**
+     * Sets a range of values of this variable without boxing.
+     * All new values are checked against the bounds before any are set,
+     * and a single change event covering the range is fired.
+     *
+     * @param index the first index of this variable to set
+     * @param values the source array
+     * @param offset the position of the first new value in the source array
+     * @param length the number of values to set
+     */
+    public final void setValues(final int index, final int[] values, final int offset, final int length) {
+        if (!trySetValues(index, values, offset, length))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a range of values only if all of them are within bounds, without boxing or throwing.
+     *
+     * @return true if the values were set, false if any was out-of-bounds and the variable is unchanged
+     * @see #setValues(int, int[], int, int)
+     */
+    public final boolean trySetValues(final int index, final int[] values, final int offset, final int length) {
+        if (index < 0 || length < 0 || index + length > getDimension())
+            throw new IndexOutOfBoundsException("Range [" + index + ", " + (index + length) + ") is outside of variable.");
+        for (int i = 0; i < length; ++i)
+            if (!inBounds(index + i, values[offset + i]))
+                return false;
+        setVariableValues(index, values, offset, length);
+        fireVariableChanged(index, length);
+        return true;
+    }
+
+    @Override
+    protected final void setVariableValues(final Stream<Integer> values) {
+        final int[] newValues = values.mapToInt(Integer::intValue).toArray();
+        if (newValues.length != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        setVariableValues(0, newValues, 0, newValues.length);
+    }
+
+    protected abstract void setVariableValues(int index, int[] values, int offset, int length);
+
+    public final void fill(final int value) {
+        for (int i = 0; i < getDimension(); ++i)
+            if (!inBounds(i, value))
+                throw new IllegalArgumentException("Value is out-of-bounds.");
+        for (int i = 0; i < getDimension(); ++i)
+            setVariableValue(i, value);
+        fireVariableChanged();
+    }
+
+    public final void setAll(final IntUnaryOperator generator) {
+        setValues(IntStream.range(0, getDimension()).map(generator).toArray());
+    }
+
+    /**
+     * Checks a value against the cached limits, without boxing.
+     */
+    public final boolean inBounds(final int index, final int value) {
+        if (lowerLimits == null)
+            return lowerLimit <= value && value <= upperLimit;
+        return lowerLimits[index] <= value && value <= upperLimits[index];
+    }
+
+    @Override
+    protected final boolean inBounds(final int index, final Integer value) {
+        return inBounds(index, value.intValue());
+    }
+
+    @Override
+    public final Bounds<Integer> getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public final void addBounds(final Bounds<Integer> bounds) {
+        this.bounds.addBounds(bounds);
+        // limits are only cached per dimension if they differ between dimensions
+        if (this.bounds.isUniform()) {
+            lowerLimit = this.bounds.getLowerLimit(0);
+            upperLimit = this.bounds.getUpperLimit(0);
+            lowerLimits = null;
+            upperLimits = null;
+        } else {
+            final int[] lowerLimits = new int[getDimension()];
+            final int[] upperLimits = new int[getDimension()];
+            for (int i = 0; i < getDimension(); ++i) {
+                lowerLimits[i] = this.bounds.getLowerLimit(i);
+                upperLimits[i] = this.bounds.getUpperLimit(i);
+            }
+            this.lowerLimits = lowerLimits;
+            this.upperLimits = upperLimits;
+        }
+    }
+
+    public final int getLowerLimit(final int index) {
+        return lowerLimits == null ? lowerLimit : lowerLimits[index];
+    }
+
+    public final int getUpperLimit(final int index) {
+        return upperLimits == null ? upperLimit : upperLimits[index];
+    }
+
+    public final class IntegerBounds implements Bounds<Integer> {
+
+        // null if the same limits apply in every dimension
+        private final int[] lower;
+        private final int[] upper;
+        private final int uniformLower;
+        private final int uniformUpper;
+
+        public IntegerBounds(final int[] lower, final int[] upper) {
+            if (lower.length != getDimension() || upper.length != getDimension())
+                throw new IllegalArgumentException("Wrong number of dimensions.");
+            if (IntStream.range(0, getDimension()).anyMatch(i -> upper[i] < lower[i]))
+                throw new IllegalArgumentException("Upper bound must be greater than or equal to lower bound.");
+            this.lower = lower;
+            this.upper = upper;
+            uniformLower = 0;
+            uniformUpper = 0;
+        }
+
+        public IntegerBounds(final int lower, final int upper) {
+            if (upper < lower)
+                throw new IllegalArgumentException("Upper bound must be greater than or equal to lower bound.");
+            this.lower = null;
+            this.upper = null;
+            uniformLower = lower;
+            uniformUpper = upper;
+        }
+
+        @Override
+        public Integer getUpperLimit(int dimension) {
+            return upper == null ? uniformUpper : upper[dimension];
+        }
+
+        @Override
+        public Stream<Integer> getUpperLimits() {
+            return IntStream.range(0, getDimension()).mapToObj(this::getUpperLimit);
+        }
+
+        @Override
+        public Integer getLowerLimit(int dimension) {
+            return lower == null ? uniformLower : lower[dimension];
+        }
+
+        @Override
+        public Stream<Integer> getLowerLimits() {
+            return IntStream.range(0, getDimension()).mapToObj(this::getLowerLimit);
+        }
+
+        @Override
+        public int getDimension() {
+            return IntegerVariable.this.getDimension();
+        }
+    }
+
+}
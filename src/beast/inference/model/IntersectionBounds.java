@@ -28,32 +28,83 @@ import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
+ * The intersection of any number of bounds.
+ * The limits in each dimension are cached and only recomputed when bounds are added.
+ * While they are the same in every dimension they are held as a single pair, so that bounds on
+ * very large variables do not need storage per dimension.
+ *
  * @author Arman Bilge
  */
 public final class IntersectionBounds<V extends Comparable<V>> implements Bounds<V> {
 
     private final int dimension;
     private final Comparator<V> comparator;
-    private final V lower;
-    private final V upper;
     private final List<Bounds<V>> bounds = new ArrayList<>();
+    // the limits in every dimension, used while the per-dimension limits are null
+    private V lowerLimit;
+    private V upperLimit;
+    private Object[] lowerLimits = null;
+    private Object[] upperLimits = null;
 
     public IntersectionBounds(final int dimension, final Comparator<V> comparator, final V lower, final V upper) {
         this.dimension = dimension;
         this.comparator = comparator;
-        this.lower = lower;
-        this.upper = upper;
+        lowerLimit = lower;
+        upperLimit = upper;
     }
 
     public void addBounds(final Bounds<V> bounds) {
         if (bounds.getDimension() != getDimension())
             throw new IllegalArgumentException("Bounds must have same number of dimensions.");
         this.bounds.add(bounds);
+        // the default limits only apply until the first bounds are added
+        final boolean first = this.bounds.size() == 1;
+
+        boolean uniform = true;
+        final V lower = intersectLower(bounds, 0, first);
+        final V upper = intersectUpper(bounds, 0, first);
+        for (int i = 1; uniform && i < getDimension(); ++i)
+            uniform = comparator.compare(intersectLower(bounds, i, first), lower) == 0
+                    && comparator.compare(intersectUpper(bounds, i, first), upper) == 0;
+
+        if (uniform) {
+            lowerLimit = lower;
+            upperLimit = upper;
+            lowerLimits = null;
+            upperLimits = null;
+        } else {
+            final Object[] lowerLimits = new Object[getDimension()];
+            final Object[] upperLimits = new Object[getDimension()];
+            for (int i = 0; i < getDimension(); ++i) {
+                lowerLimits[i] = intersectLower(bounds, i, first);
+                upperLimits[i] = intersectUpper(bounds, i, first);
+            }
+            this.lowerLimits = lowerLimits;
+            this.upperLimits = upperLimits;
+        }
+    }
+
+    private V intersectLower(final Bounds<V> bounds, final int i, final boolean first) {
+        final V lower = bounds.getLowerLimit(i);
+        return first || comparator.compare(lower, getLowerLimit(i)) > 0 ? lower : getLowerLimit(i);
+    }
+
+    private V intersectUpper(final Bounds<V> bounds, final int i, final boolean first) {
+        final V upper = bounds.getUpperLimit(i);
+        return first || comparator.compare(upper, getUpperLimit(i)) < 0 ? upper : getUpperLimit(i);
+    }
+
+    /**
+     * @return true if the limits are the same in every dimension
+     */
+    public boolean isUniform() {
+        return lowerLimits == null;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public V getLowerLimit(final int dimension) {
-        return bounds.stream().map(b -> b.getLowerLimit(dimension)).max(comparator).orElse(lower);
+        return lowerLimits == null ? lowerLimit : (V) lowerLimits[dimension];
     }
 
     @Override
@@ -63,8 +114,9 @@ public final class IntersectionBounds<V extends Comparable<V>> implements Bounds
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public V getUpperLimit(final int dimension) {
-        return bounds.stream().map(b -> b.getUpperLimit(dimension)).min(comparator).orElse(upper);
+        return upperLimits == null ? upperLimit : (V) upperLimits[dimension];
     }
 
     @Override
@@ -73,6 +125,12 @@ public final class IntersectionBounds<V extends Comparable<V>> implements Bounds
                 .mapToObj(this::getUpperLimit);
     }
 
+    @Override
+    public boolean inBounds(final int dimension, final V value) {
+        return comparator.compare(value, getLowerLimit(dimension)) >= 0
+                && comparator.compare(value, getUpperLimit(dimension)) <= 0;
+    }
+
     @Override
     public int getDimension() {
         return dimension;
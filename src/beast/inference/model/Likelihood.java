@@ -23,6 +23,8 @@ package beast.inference.model;
 import beast.inference.logging.LogColumn;
 import beast.inference.logging.Loggable;
 import beast.inference.logging.RealNumberColumn;
+import beast.inference.model.Variable.ChangeEvent;
+import beast.math.MachineAccuracy;
 import beast.util.Identifiable;
 
 import java.util.Collection;
@@ -40,12 +42,15 @@ import java.util.stream.Stream;
  */
 public abstract class Likelihood implements Identifiable, Loggable, ModelChangeListener<Object>, ModelStoreListener {
 
+    private static final double RELATIVE_STEP = Math.cbrt(MachineAccuracy.EPSILON);
+
     private String id;
     private boolean used = false;
     private boolean likelihoodKnown = false;
     private boolean storedLikelihoodKnown;
     private double logLikelihood;
     private double storedLogLikelihood;
+    private boolean exact;
 
     private final Model<Object> model = new CompoundModel(getClass().getSimpleName() + "Model");
 
@@ -55,8 +60,8 @@ public abstract class Likelihood implements Identifiable, Loggable, ModelChangeL
     }
 
     public Likelihood(final Model<?> model, final Model<?>... models) {
-        model.addModel(model);
-        model.addModels(models);
+        this.model.addModel(model);
+        this.model.addModels(models);
     }
 
 	/**
@@ -81,6 +86,60 @@ public abstract class Likelihood implements Identifiable, Loggable, ModelChangeL
 
     protected abstract double calculateLogLikelihood();
 
+    /**
+     * Get the log likelihood, or only establish that it is less than a lower bound.
+     * If the calculation stopped early the value returned is less than the bound but only an upper bound
+     * on the log likelihood, in which case it is not cached and {@link #getLikelihoodKnown()} stays false.
+     *
+     * @param lowerBound the value below which the exact log likelihood is not needed
+     * @return the log likelihood, or a value less than the bound that is at least the log likelihood
+     */
+    public final double getLogLikelihood(final double lowerBound) {
+        if (!getLikelihoodKnown()) {
+            exact = true;
+            final double logLikelihood = calculateLogLikelihood(lowerBound);
+            if (exact) {
+                this.logLikelihood = logLikelihood;
+                likelihoodKnown = true;
+            }
+            return logLikelihood;
+        }
+        return logLikelihood;
+    }
+
+    /**
+     * Calculates the log likelihood, possibly stopping as soon as it is known to be less than the lower bound,
+     * in which case the result must come from {@link #stopEarly(double, double)}.
+     * By default the log likelihood is calculated in full.
+     *
+     * @param lowerBound the value below which the exact log likelihood is not needed
+     * @return the log likelihood, or a value less than the bound that is at least the log likelihood
+     */
+    protected double calculateLogLikelihood(final double lowerBound) {
+        return calculateLogLikelihood();
+    }
+
+    /**
+     * Marks the current calculation as stopped early, so that its result is not mistaken for the log likelihood.
+     * The upper bound is clamped below the lower bound, since rounding may have carried it up to the bound.
+     *
+     * @param upperBound an upper bound on the log likelihood, known to be less than the lower bound
+     * @param lowerBound the lower bound passed to {@link #calculateLogLikelihood(double)}
+     * @return a value less than the lower bound
+     */
+    protected final double stopEarly(final double upperBound, final double lowerBound) {
+        exact = false;
+        return Math.min(upperBound, Math.nextDown(lowerBound));
+    }
+
+    /**
+     * @return a constant that the log likelihood never exceeds, for example zero for a probability;
+     * by default positive infinity
+     */
+    public double getMaximumLogLikelihood() {
+        return Double.POSITIVE_INFINITY;
+    }
+
     public final boolean getLikelihoodKnown() {
         return likelihoodKnown;
     }
@@ -90,13 +149,177 @@ public abstract class Likelihood implements Identifiable, Loggable, ModelChangeL
     }
 
     public final DoubleStream getGradient(final Stream<RealVariable> vars) {
-        final Gradient gradient = new Gradient();
+        return getGradient(new Gradient(vars.toArray(RealVariable[]::new))).getGradient();
+    }
+
+    /**
+     * Calculates the gradient into an existing gradient, which is cleared first, so that it can be reused.
+     *
+     * @param gradient the gradient to calculate into
+     * @return the gradient
+     */
+    public final Gradient getGradient(final Gradient gradient) {
+        gradient.clear();
         calculateGradient(gradient, 1.0);
-        return gradient.getGradient(vars);
+        return gradient;
     }
 
     protected abstract void calculateGradient(Gradient gradient, double chain);
 
+    /**
+     * Calculates the diagonal of the Hessian into an existing gradient, which is cleared first.
+     *
+     * @param diagonal the gradient to calculate the diagonal into
+     * @return the diagonal
+     */
+    public final Gradient getHessianDiagonal(final Gradient diagonal) {
+        diagonal.clear();
+        calculateHessianDiagonal(diagonal, 1.0);
+        return diagonal;
+    }
+
+    /**
+     * Calculates the product of the Hessian with a vector into an existing gradient, which is cleared first.
+     * Entries of the vector for variables that are not part of it are taken to be zero,
+     * but it must have an entry for every variable of the product.
+     *
+     * @param vector the vector, laid out as a gradient
+     * @param product the gradient to calculate the product into
+     * @return the product
+     */
+    public final Gradient getHessianVectorProduct(final Gradient vector, final Gradient product) {
+        if (!vector.containsAll(product))
+            throw new IllegalArgumentException("Vector must have an entry for every variable of the product.");
+        product.clear();
+        calculateHessianVectorProduct(vector, product, 1.0);
+        return product;
+    }
+
+    /**
+     * Adds the diagonal of the Hessian of the log likelihood.
+     * By default it is found by central differences of the gradient, perturbing each entry in turn between
+     * a store and a restore of the model (on one side only at a bound), at the cost of two gradients per entry.
+     * Variables outside the model are not perturbed, and contribute nothing.
+     * So it must not be called while a proposal has changed the model but not yet been accepted or rejected.
+     */
+    protected void calculateHessianDiagonal(final Gradient diagonal, final double chain) {
+        final Gradient center = new Gradient(diagonal);
+        calculateGradient(center, 1.0);
+        final Gradient gradient = new Gradient(diagonal);
+        for (int v = 0; v < diagonal.getVariableCount(); ++v) {
+            final RealVariable var = diagonal.getVariable(v);
+            if (!model.hasVariable(var))
+                continue;
+            for (int i = 0; i < var.getDimension(); ++i) {
+                final double x = var.getDoubleValue(i);
+                final double h = RELATIVE_STEP * Math.max(1.0, Math.abs(x));
+                double upper = center.getDerivative(var, i);
+                double lower = upper;
+                double width = 0.0;
+                model.storeState();
+                if (var.trySetValue(i, x + h)) {
+                    gradient.clear();
+                    calculateGradient(gradient, 1.0);
+                    upper = gradient.getDerivative(var, i);
+                    width += h;
+                }
+                if (var.trySetValue(i, x - h)) {
+                    gradient.clear();
+                    calculateGradient(gradient, 1.0);
+                    lower = gradient.getDerivative(var, i);
+                    width += h;
+                }
+                model.restoreState();
+                if (Double.doubleToLongBits(var.getDoubleValue(i)) != Double.doubleToLongBits(x))
+                    throw new IllegalStateException(var.getName() + "[" + i + "] was not restored after perturbing it.");
+                if (width == 0.0)
+                    throw new IllegalStateException("Cannot perturb " + var.getName() + "[" + i + "] within its bounds.");
+                diagonal.addDerivative(var, i, chain * (upper - lower) / width);
+            }
+        }
+    }
+
+    /**
+     * Adds the product of the Hessian of the log likelihood with a vector.
+     * By default it is found by central differences of the gradient along the vector, between a store and a restore
+     * of the model (on one side only at a bound), with a step that moves no entry by more than its own relative step.
+     * Variables outside the model are not moved, as if their entries of the vector were zero.
+     * So it must not be called while a proposal has changed the model but not yet been accepted or rejected.
+     */
+    protected void calculateHessianVectorProduct(final Gradient vector, final Gradient product, final double chain) {
+        double h = Double.POSITIVE_INFINITY;
+        for (int v = 0; v < vector.getVariableCount(); ++v) {
+            final RealVariable var = vector.getVariable(v);
+            if (!model.hasVariable(var))
+                continue;
+            for (int i = 0; i < var.getDimension(); ++i) {
+                final double d = Math.abs(vector.getDerivative(var, i));
+                if (d != 0.0)
+                    h = Math.min(h, RELATIVE_STEP * Math.max(1.0, Math.abs(var.getDoubleValue(i))) / d);
+            }
+        }
+        if (h == Double.POSITIVE_INFINITY)
+            return;
+
+        final Gradient upper = new Gradient(product);
+        final Gradient lower = new Gradient(product);
+        final boolean forward = calculateGradient(vector, h, upper);
+        final boolean backward = calculateGradient(vector, -h, lower);
+        if (!forward && !backward)
+            throw new IllegalStateException("Cannot step along the vector within the bounds.");
+        // at a bound the difference is taken on one side only, from the gradient at the current values
+        if (!forward)
+            calculateGradient(upper, 1.0);
+        if (!backward)
+            calculateGradient(lower, 1.0);
+        final double width = forward && backward ? 2 * h : h;
+        for (int v = 0; v < product.getVariableCount(); ++v) {
+            final RealVariable var = product.getVariable(v);
+            for (int i = 0; i < var.getDimension(); ++i)
+                product.addDerivative(var, i, chain * (upper.getDerivative(var, i) - lower.getDerivative(var, i)) / width);
+        }
+    }
+
+    /**
+     * Calculates the gradient with the variables of the model moved by a step along a vector,
+     * unless that leaves their bounds.
+     *
+     * @return whether the step was within the bounds
+     */
+    private boolean calculateGradient(final Gradient vector, final double step, final Gradient gradient) {
+        final double[][] original = new double[vector.getVariableCount()][];
+        model.storeState();
+        boolean inBounds = true;
+        for (int v = 0; v < vector.getVariableCount() && inBounds; ++v) {
+            final RealVariable var = vector.getVariable(v);
+            if (!model.hasVariable(var))
+                continue;
+            final double[] values = new double[var.getDimension()];
+            boolean moved = false;
+            for (int i = 0; i < values.length; ++i) {
+                final double d = vector.getDerivative(var, i);
+                values[i] = var.getDoubleValue(i) + step * d;
+                moved |= d != 0.0;
+            }
+            if (moved) {
+                original[v] = var.getDoubleValues().toArray();
+                inBounds = var.trySetValues(0, values, 0, values.length);
+            }
+        }
+        if (inBounds)
+            calculateGradient(gradient, 1.0);
+        model.restoreState();
+        for (int v = 0; v < original.length; ++v) {
+            if (original[v] != null) {
+                final RealVariable var = vector.getVariable(v);
+                for (int i = 0; i < original[v].length; ++i)
+                    if (Double.doubleToLongBits(var.getDoubleValue(i)) != Double.doubleToLongBits(original[v][i]))
+                        throw new IllegalStateException(var.getName() + "[" + i + "] was not restored after perturbing it.");
+            }
+        }
+        return inBounds;
+    }
+
 	/**
 	 * Forces a complete recalculation of the likelihood next time getLikelihood is called
 	 */
@@ -131,6 +354,22 @@ public abstract class Likelihood implements Identifiable, Loggable, ModelChangeL
         setLikelihoodUnknown();
     }
 
+    @Override
+    public final void handleVariableChanged(final ChangeEvent change) {
+        setLikelihoodUnknown();
+        handleVariableChangedEvent(change);
+    }
+
+    /**
+     * Called when a variable within the model has changed, before the likelihood is next calculated.
+     * Subclasses can use the variable, type and index of the change to recalculate only the affected terms.
+     *
+     * @param change the change
+     */
+    protected void handleVariableChangedEvent(final ChangeEvent change) {
+        // Nothing by default
+    }
+
     @Override
     public final void modelStored() {
         storedLikelihoodKnown = likelihoodKnown;
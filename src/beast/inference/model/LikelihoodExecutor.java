@@ -0,0 +1,183 @@
+/*
+ * LikelihoodExecutor.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * The process-wide scheduler that all parallel likelihood calculations are submitted to.
+ * By default tasks run on a shared work-stealing {@link ForkJoinPool}, so that nested calculations fork and
+ * join cooperatively on the pool's own workers instead of blocking them.
+ * Alternatively, on a runtime that supports them, each task can run on its own virtual thread.
+ * <p/>
+ * The parallelism of the pool is the number of available processors,
+ * unless set by the {@value #PARALLELISM_PROPERTY} system property.
+ * Virtual threads are used from the start if the {@value #VIRTUAL_THREADS_PROPERTY} system property is true.
+ *
+ * @author Arman Bilge
+ */
+public final class LikelihoodExecutor {
+
+    public static final String PARALLELISM_PROPERTY = "beast.likelihood.threads";
+    public static final String VIRTUAL_THREADS_PROPERTY = "beast.likelihood.virtual";
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+            Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+    // never shut down, since a task may still be submitting to it after virtual threads are switched off;
+    // it starts a thread per task, so it holds no threads while idle
+    private static final ExecutorService VIRTUAL_THREADS = createVirtualThreadExecutor();
+
+    private static volatile boolean virtualThreads =
+            VIRTUAL_THREADS != null && Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+
+    // the number of tasks of parallel invocations that each thread is running, nested within each other
+    private static final ThreadLocal<int[]> TASK_DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+    private LikelihoodExecutor() {
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or null if the runtime does not support them
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            // looked up reflectively so that this can be built and run on runtimes without virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets whether tasks run on virtual threads rather than the shared pool.
+     *
+     * @return true if the requested mode is in effect, false if virtual threads are not supported
+     */
+    public static boolean setVirtualThreads(final boolean virtual) {
+        if (virtual && VIRTUAL_THREADS == null)
+            return false;
+        virtualThreads = virtual;
+        return true;
+    }
+
+    public static boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return whether the current thread is running a task of a parallel invocation,
+     * which may run alongside the other tasks of the same invocation
+     */
+    public static boolean inParallelTask() {
+        return TASK_DEPTH.get()[0] > 0;
+    }
+
+    private static void run(final IntConsumer task, final int index) {
+        final int[] depth = TASK_DEPTH.get();
+        ++depth[0];
+        try {
+            task.accept(index);
+        } finally {
+            --depth[0];
+        }
+    }
+
+    /**
+     * @return the parallelism of the shared pool
+     */
+    public static int getParallelism() {
+        return POOL.getParallelism();
+    }
+
+    /**
+     * Runs the task for each index in [0, n) in parallel and waits for all of them to complete.
+     * May be called from within a task, in which case the calling worker takes part in the work.
+     *
+     * @param n the number of indices
+     * @param task the task to run for each index
+     */
+    public static void invoke(final int n, final IntConsumer task) {
+        if (n < 1)
+            return;
+        if (n == 1) {
+            task.accept(0);
+            return;
+        }
+
+        if (virtualThreads) {
+            invoke(VIRTUAL_THREADS, n, task);
+        } else {
+            final Invocation invocation = new Invocation(task, 0, n);
+            if (ForkJoinTask.getPool() == POOL) // already on a worker, so fork and join in place
+                invocation.invoke();
+            else
+                POOL.invoke(invocation);
+        }
+    }
+
+    private static void invoke(final ExecutorService executor, final int n, final IntConsumer task) {
+        final Future<?>[] futures = new Future<?>[n - 1];
+        for (int i = 1; i < n; ++i) {
+            final int index = i;
+            futures[i - 1] = executor.submit(() -> run(task, index));
+        }
+        run(task, 0);
+        try {
+            for (final Future<?> future : futures)
+                future.get();
+        } catch (final InterruptedException | ExecutionException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static final class Invocation extends RecursiveAction {
+
+        private final IntConsumer task;
+        private final int from;
+        private final int to;
+
+        private Invocation(final IntConsumer task, final int from, final int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                run(task, from);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new Invocation(task, from, mid), new Invocation(task, mid, to));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * MatrixVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import beast.inference.logging.LogColumn;
+import beast.inference.logging.RealNumberColumn;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+
+/**
+ * A matrix of reals stored in a single flat array, in either row-major or column-major order.
+ * The flat index of each entry is its index as a real variable, so bounds apply per entry.
+ * Changes to a row, column or other block fire a single {@link BlockChangeEvent},
+ * so that listeners can update only the affected rows or columns.
+ * Changes since the last store are journalled as in {@link SimpleRealVariable}.
+ *
+ * @author Arman Bilge
+ */
+public final class MatrixVariable extends RealVariable {
+
+    public enum Order {
+        ROW_MAJOR,
+        COLUMN_MAJOR
+    }
+
+    private final int rowCount;
+    private final int columnCount;
+    private final Order order;
+    private double[] values;
+    private double[] storedValues;
+    private final UndoJournal journal;
+    private final BlockChangeEvent event = new BlockChangeEvent();
+
+    public MatrixVariable(final String name, final int rowCount, final int columnCount, final Order order) {
+        super(name, getEntryCount(rowCount, columnCount));
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.order = order;
+        values = new double[getDimension()];
+        storedValues = new double[getDimension()];
+        journal = new UndoJournal(getDimension(), new Storage());
+    }
+
+    public MatrixVariable(final String name, final int rowCount, final int columnCount) {
+        this(name, rowCount, columnCount, Order.ROW_MAJOR);
+    }
+
+    private static int getEntryCount(final int rowCount, final int columnCount) {
+        if (rowCount < 0 || columnCount < 0)
+            throw new IllegalArgumentException("Number of rows and columns must be non-negative.");
+        try {
+            return Math.multiplyExact(rowCount, columnCount);
+        } catch (final ArithmeticException ex) {
+            throw new IllegalArgumentException("Matrix has too many entries.", ex);
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the flat index of the given entry
+     */
+    public int getIndex(final int row, final int column) {
+        if (row < 0 || column < 0 || row >= rowCount || column >= columnCount)
+            throw new IndexOutOfBoundsException("Entry (" + row + ", " + column + ") is outside of matrix.");
+        return order == Order.ROW_MAJOR ? row * columnCount + column : column * rowCount + row;
+    }
+
+    /**
+     * @return the row of the entry at the given flat index
+     */
+    public int getRow(final int index) {
+        return order == Order.ROW_MAJOR ? index / columnCount : index % rowCount;
+    }
+
+    /**
+     * @return the column of the entry at the given flat index
+     */
+    public int getColumn(final int index) {
+        return order == Order.ROW_MAJOR ? index % columnCount : index / rowCount;
+    }
+
+    public double getDoubleValue(final int row, final int column) {
+        return getDoubleValue(getIndex(row, column));
+    }
+
+    public void setValue(final int row, final int column, final double value) {
+        setValue(getIndex(row, column), value);
+    }
+
+    public boolean trySetValue(final int row, final int column, final double value) {
+        return trySetValue(getIndex(row, column), value);
+    }
+
+    @Override
+    public double getDoubleValue(final int index) {
+        return values[index];
+    }
+
+    @Override
+    public DoubleStream getDoubleValues() {
+        return Arrays.stream(values);
+    }
+
+    @Override
+    protected void setVariableValue(final int index, final double value) {
+        journal.recordChange(index, values[index]);
+        values[index] = value;
+    }
+
+    @Override
+    protected void setVariableValues(final int index, final double[] values, final int offset, final int length) {
+        for (int i = index; i < index + length; ++i)
+            if (!journal.recordChange(i, this.values[i]))
+                break;
+        System.arraycopy(values, offset, this.values, index, length);
+    }
+
+    /**
+     * Sets a block of entries, checking all of them against the bounds first,
+     * and fires a single block change event.
+     *
+     * @param row the first row of the block
+     * @param column the first column of the block
+     * @param rows the number of rows in the block
+     * @param columns the number of columns in the block
+     * @param values the new values of the block, in row-major order
+     */
+    public void setBlock(final int row, final int column, final int rows, final int columns, final double[] values) {
+        if (!trySetBlock(row, column, rows, columns, values))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a block of entries only if all of them are within bounds.
+     *
+     * @return true if the values were set, false if any was out-of-bounds and the matrix is unchanged
+     * @see #setBlock(int, int, int, int, double[])
+     */
+    public boolean trySetBlock(final int row, final int column, final int rows, final int columns, final double[] values) {
+        checkBlock(row, column, rows, columns);
+        if (values.length != rows * columns)
+            throw new IllegalArgumentException("Wrong number of new values");
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < columns; ++j)
+                if (!inBounds(getIndex(row + i, column + j), values[i * columns + j]))
+                    return false;
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < columns; ++j)
+                setVariableValue(getIndex(row + i, column + j), values[i * columns + j]);
+        fireBlockChanged(row, column, rows, columns);
+        return true;
+    }
+
+    private void fireBlockChanged(final int row, final int column, final int rows, final int columns) {
+        if (rows == rowCount && columns == columnCount) {
+            fireVariableChanged();
+        } else if (rows * columns == 1) {
+            fireVariableChanged(getIndex(row, column));
+        } else if (rows * columns > 0) {
+            final int previousRow = event.row;
+            final int previousColumn = event.column;
+            final int previousRows = event.rows;
+            final int previousColumns = event.columns;
+            final int previousIndex = event.getIndex();
+            final int previousLength = event.getLength();
+            event.row = row;
+            event.column = column;
+            event.rows = rows;
+            event.columns = columns;
+            // the smallest range of flat indices that covers the block, for listeners that only look at ranges
+            final int first = getIndex(row, column);
+            event.setRange(first, getIndex(row + rows - 1, column + columns - 1) - first + 1);
+            fireVariableChanged(event);
+            event.row = previousRow;
+            event.column = previousColumn;
+            event.rows = previousRows;
+            event.columns = previousColumns;
+            event.setRange(previousIndex, previousLength);
+        }
+    }
+
+    /**
+     * @return a view of the given row
+     */
+    public Block row(final int row) {
+        return block(row, 0, 1, columnCount);
+    }
+
+    /**
+     * @return a view of the given column
+     */
+    public Block column(final int column) {
+        return block(0, column, rowCount, 1);
+    }
+
+    /**
+     * @return a view of the given submatrix
+     */
+    public Block block(final int row, final int column, final int rows, final int columns) {
+        checkBlock(row, column, rows, columns);
+        return new Block(row, column, rows, columns);
+    }
+
+    private void checkBlock(final int row, final int column, final int rows, final int columns) {
+        if (row < 0 || column < 0 || rows < 0 || columns < 0 || row > rowCount - rows || column > columnCount - columns)
+            throw new IndexOutOfBoundsException("Block is outside of matrix.");
+    }
+
+    @Override
+    protected void storeVariableValues() {
+        journal.store();
+    }
+
+    @Override
+    protected void restoreVariableValues() {
+        journal.restore();
+    }
+
+    private final class Storage implements UndoJournal.Storage {
+
+        @Override
+        public void copyToStored() {
+            System.arraycopy(values, 0, storedValues, 0, values.length);
+        }
+
+        @Override
+        public void undoStored(final UndoJournal journal) {
+            journal.undo(storedValues);
+        }
+
+        @Override
+        public void undoCurrent(final UndoJournal journal) {
+            journal.undo(values);
+        }
+
+        @Override
+        public void restoreStored() {
+            final double[] tmp = values;
+            values = storedValues;
+            storedValues = tmp;
+        }
+    }
+
+    @Override
+    public Collection<LogColumn> getColumns() {
+        return Collections.unmodifiableList(
+                IntStream.range(0, getDimension())
+                        .mapToObj(i -> new RealNumberColumn(getName() + "[" + getRow(i) + "][" + getColumn(i) + "]") {
+                            @Override
+                            protected Double getValue() {
+                                return MatrixVariable.this.getValue(i);
+                            }
+                        })
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * A view of a block of this matrix that shares its storage.
+     * Setting values through the view fires block change events on the matrix.
+     */
+    public final class Block {
+
+        private final int row;
+        private final int column;
+        private final int rows;
+        private final int columns;
+
+        private Block(final int row, final int column, final int rows, final int columns) {
+            this.row = row;
+            this.column = column;
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public int getColumnCount() {
+            return columns;
+        }
+
+        public double getDoubleValue(final int i, final int j) {
+            checkEntry(i, j);
+            return MatrixVariable.this.getDoubleValue(row + i, column + j);
+        }
+
+        public void setValue(final int i, final int j, final double value) {
+            checkEntry(i, j);
+            MatrixVariable.this.setValue(row + i, column + j, value);
+        }
+
+        public boolean trySetValue(final int i, final int j, final double value) {
+            checkEntry(i, j);
+            return MatrixVariable.this.trySetValue(row + i, column + j, value);
+        }
+
+        private void checkEntry(final int i, final int j) {
+            if (i < 0 || j < 0 || i >= rows || j >= columns)
+                throw new IndexOutOfBoundsException("Entry (" + i + ", " + j + ") is outside of block.");
+        }
+
+        /**
+         * @return the values of this block in row-major order
+         */
+        public double[] getDoubleValues() {
+            final double[] values = new double[rows * columns];
+            for (int i = 0; i < rows; ++i)
+                for (int j = 0; j < columns; ++j)
+                    values[i * columns + j] = MatrixVariable.this.getDoubleValue(row + i, column + j);
+            return values;
+        }
+
+        /**
+         * @param values the new values of this block in row-major order
+         */
+        public void setValues(final double... values) {
+            setBlock(row, column, rows, columns, values);
+        }
+
+        public MatrixVariable getMatrix() {
+            return MatrixVariable.this;
+        }
+    }
+
+    /**
+     * Describes a change to a rectangular block of the matrix.
+     * The index and length of the event are those of the smallest range of flat indices that covers the block,
+     * which also includes entries outside of the block unless it spans whole rows (row-major) or columns (column-major).
+     * Listeners that can should use {@link #isChanged(int)} or the row and column extents, which are exact.
+     */
+    public final class BlockChangeEvent extends ChangeEvent {
+
+        private int row;
+        private int column;
+        private int rows;
+        private int columns;
+
+        private BlockChangeEvent() {
+            super(ChangeType.BLOCK_CHANGED, -1, 0);
+        }
+
+        public int getFirstRow() {
+            return row;
+        }
+
+        public int getRowSpan() {
+            return rows;
+        }
+
+        public int getFirstColumn() {
+            return column;
+        }
+
+        public int getColumnSpan() {
+            return columns;
+        }
+
+        public boolean isRowChanged(final int i) {
+            return row <= i && i < row + rows;
+        }
+
+        public boolean isColumnChanged(final int j) {
+            return column <= j && j < column + columns;
+        }
+
+        @Override
+        public boolean isChanged(final int i) {
+            return isRowChanged(getRow(i)) && isColumnChanged(getColumn(i));
+        }
+    }
+
+}
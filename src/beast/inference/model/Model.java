@@ -45,9 +45,14 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
     private final List<Model<?>> models = new ArrayList<>();
     private final List<Variable<?>> variables = new ArrayList<>();
 
-    private final List<ModelChangeListener<C>> changeListeners = new ArrayList<>();
+    private ModelChangeListener[] changeListeners = new ModelChangeListener[0];
     private final List<ModelStoreListener> storeListeners = new ArrayList<>();
 
+    private DependencyPlan plan;
+    private int planIndex;
+
+    private boolean dirty = true;
+
     /**
      * @param name Model name
      */
@@ -60,7 +65,7 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
     }
 
     public final boolean isUsed() {
-        return changeListeners.size() + storeListeners.size() > 0;
+        return changeListeners.length + storeListeners.size() > 0;
     }
 
     /**
@@ -68,6 +73,7 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
      * list then it does nothing.
      */
     public final void addModel(final Model model) {
+        checkNotFrozen();
         if (!models.contains(model)) {
             models.add(model);
             model.addChangeListener(this);
@@ -79,6 +85,7 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
     }
 
     public final void removeModel(final Model model) {
+        checkNotFrozen();
         models.remove(model);
         model.removeChangeListener(this);
     }
@@ -88,6 +95,7 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
     }
 
     public final void addVariable(final Variable variable) {
+        checkNotFrozen();
         if (!hasVariable(variable)) {
             variables.add(variable);
             variable.addVariableListener(this);
@@ -95,6 +103,7 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
     }
 
     public final void removeVariable(final Variable var) {
+        checkNotFrozen();
         variables.remove(var);
         var.removeVariableListener(this);
     }
@@ -108,6 +117,8 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
      * @return true of the given variable is contained in this model
      */
     public final boolean hasVariable(final Variable var) {
+        if (plan != null && var.getPlan() == plan)
+            return plan.isAffected(var.getPlanIndex(), planIndex);
         return variables.contains(var) || models.stream().anyMatch(m -> m.hasVariable(var));
     }
 
@@ -115,15 +126,40 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
      * Adds a model listener.
      */
     public final void addChangeListener(final ModelChangeListener<C> listener) {
-        if (!changeListeners.contains(listener))
-            changeListeners.add(listener);
+        checkNotFrozen();
+        if (!Arrays.asList(changeListeners).contains(listener)) {
+            changeListeners = Arrays.copyOf(changeListeners, changeListeners.length + 1);
+            changeListeners[changeListeners.length - 1] = listener;
+        }
     }
 
     /**
      * remove a model listener.
      */
     public final void removeChangeListener(final ModelChangeListener listener) {
-        changeListeners.remove(listener);
+        checkNotFrozen();
+        changeListeners = Arrays.stream(changeListeners).filter(l -> !l.equals(listener)).toArray(ModelChangeListener[]::new);
+    }
+
+    final ModelChangeListener[] getChangeListeners() {
+        return changeListeners;
+    }
+
+    final void setPlan(final DependencyPlan plan, final int planIndex) {
+        this.plan = plan;
+        this.planIndex = planIndex;
+    }
+
+    /**
+     * @return true if this model is part of a compiled dependency plan and its structure can no longer change
+     */
+    public final boolean isFrozen() {
+        return plan != null;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen())
+            throw new IllegalStateException("Model " + getName() + " is frozen.");
     }
 
     public final void addStoreListener(final ModelStoreListener listener) {
@@ -139,11 +175,16 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
      * Fires a model changed event.
      */
     protected final void fireModelChanged() {
-        changeListeners.forEach(ModelChangeListener::handleModelChanged);
+        dirty = true;
+        for (final ModelChangeListener listener : changeListeners)
+            listener.handleModelChanged();
     }
 
+    @SuppressWarnings("unchecked")
     protected final void fireModelChanged(final C change) {
-        changeListeners.forEach(l -> l.handleModelChanged(change));
+        dirty = true;
+        for (final ModelChangeListener listener : changeListeners)
+            listener.handleModelChanged(change);
     }
 
     @Override
@@ -153,14 +194,34 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
 
     @Override
     public final void handleVariableChanged(final ChangeEvent change) {
-        fireModelChanged();
+        dirty = true;
+        for (final ModelChangeListener listener : changeListeners)
+            listener.handleVariableChanged(change);
+    }
+
+    /**
+     * @return true if this model has changed since it was last stored or restored
+     */
+    public final boolean isDirty() {
+        return dirty;
     }
 
+    final void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Stores the state of this model and its sub-models and variables.
+     * Models and variables that have not changed since the last store or restore are skipped entirely.
+     */
     public final void storeState() {
+        if (!dirty)
+            return;
         models.forEach(Model::storeState);
         variables.forEach(Variable::storeValues);
         storeModelState();
         storeListeners.forEach(ModelStoreListener::modelStored);
+        dirty = false;
     }
 
     /**
@@ -168,11 +229,18 @@ public abstract class Model<C> implements Identifiable, ModelChangeListener<Obje
      */
     protected abstract void storeModelState();
 
+    /**
+     * Restores the state of this model and its sub-models and variables.
+     * Models and variables that have not changed since the last store or restore are skipped entirely.
+     */
     public final void restoreState() {
+        if (!dirty)
+            return;
         models.forEach(Model::restoreState);
         variables.forEach(Variable::restoreValues);
         restoreModelState();
         storeListeners.forEach(ModelStoreListener::modelRestored);
+        dirty = false;
     }
 
     /**
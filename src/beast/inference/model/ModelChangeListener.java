@@ -20,6 +20,8 @@
 
 package beast.inference.model;
 
+import beast.inference.model.Variable.ChangeEvent;
+
 import java.util.Optional;
 
 /**
@@ -30,7 +32,7 @@ import java.util.Optional;
  * @author Arman Bilge
  */
 @FunctionalInterface
-public interface ModelChangeListener<C> {
+public interface ModelChangeListener<C> extends VariableListener {
 
     default void handleModelChanged() {
         handleModelChanged(Optional.empty());
@@ -48,4 +50,14 @@ public interface ModelChangeListener<C> {
      */
     void handleModelChanged(Optional<C> change);
 
+    /**
+     * A variable somewhere within the model has changed. The event identifies
+     * the variable, the type of change and the affected index. By default this
+     * is treated like any other change of the model.
+     */
+    @Override
+    default void handleVariableChanged(final ChangeEvent change) {
+        handleModelChanged();
+    }
+
 }
@@ -0,0 +1,207 @@
+/*
+ * OffHeapRealVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+
+/**
+ * A real variable whose values live outside of the Java heap, so that very high-dimensional
+ * variables do not burden the garbage collector.
+ * The values are either held in direct buffers or mapped from a file, in which case the state
+ * persists and can be reopened later without having to be parsed again.
+ * Changes since the last store are journalled as in {@link SimpleRealVariable}.
+ * Only the values themselves are off the heap: the journal and any bounds that differ between entries remain on it,
+ * though the journal is limited to {@link #MAX_JOURNAL_SIZE} entries (12 bytes each) whatever the dimension.
+ * Each buffer is limited to {@link Integer#MAX_VALUE} bytes, so the dimension is at most {@link #MAX_DIMENSION}.
+ *
+ * @author Arman Bilge
+ */
+public final class OffHeapRealVariable extends RealVariable {
+
+    private static final int BYTES = Double.SIZE / Byte.SIZE;
+    public static final int MAX_DIMENSION = Integer.MAX_VALUE / BYTES;
+    /** The most changes journalled, beyond which the stored values are reconstructed in full instead. */
+    public static final int MAX_JOURNAL_SIZE = 1 << 16;
+
+    private final MappedByteBuffer[] regions;
+    private DoubleBuffer values;
+    private DoubleBuffer storedValues;
+    private final UndoJournal journal;
+
+    /**
+     * Creates a variable held in direct buffers.
+     */
+    public OffHeapRealVariable(final String name, final int dimension) {
+        super(name, dimension);
+        regions = null;
+        values = allocate(dimension);
+        storedValues = allocate(dimension);
+        journal = new UndoJournal(dimension, MAX_JOURNAL_SIZE, new Storage());
+    }
+
+    public OffHeapRealVariable(final String name, final int dimension, final double value) {
+        this(name, dimension);
+        fill(value);
+    }
+
+    /**
+     * Creates a variable mapped from a file, which is created if it does not already exist.
+     * An existing file must have been created with the same dimension and its values are kept.
+     * The first half of the file holds the current values and the second half the stored values,
+     * in the native byte order.
+     *
+     * @param file the file to map
+     */
+    public OffHeapRealVariable(final String name, final int dimension, final Path file) throws IOException {
+        super(name, dimension);
+        final long regionSize = getSize(dimension);
+        if (Files.exists(file) && Files.size(file) != 2 * regionSize)
+            throw new IllegalArgumentException("File " + file + " does not hold a variable of dimension " + dimension + ".");
+        try (final FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            regions = new MappedByteBuffer[]{
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize),
+                    channel.map(FileChannel.MapMode.READ_WRITE, regionSize, regionSize)
+            };
+        }
+        values = regions[0].order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        storedValues = regions[1].order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        journal = new UndoJournal(dimension, MAX_JOURNAL_SIZE, new Storage());
+    }
+
+    /**
+     * Reopens a variable previously mapped from a file.
+     *
+     * @param file the file to map
+     */
+    public static OffHeapRealVariable open(final String name, final Path file) throws IOException {
+        final long size = Files.size(file);
+        if (size % (2 * BYTES) != 0 || size / (2 * BYTES) > MAX_DIMENSION)
+            throw new IllegalArgumentException("File " + file + " does not hold a variable.");
+        return new OffHeapRealVariable(name, (int) (size / (2 * BYTES)), file);
+    }
+
+    private static DoubleBuffer allocate(final int dimension) {
+        return ByteBuffer.allocateDirect(getSize(dimension)).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * @return the size in bytes of a buffer of the given dimension
+     */
+    private static int getSize(final int dimension) {
+        try {
+            return Math.multiplyExact(dimension, BYTES);
+        } catch (final ArithmeticException ex) {
+            throw new IllegalArgumentException("Dimension must be at most " + MAX_DIMENSION + ".", ex);
+        }
+    }
+
+    /**
+     * Writes any changes to the values of a variable mapped from a file out to the storage device.
+     */
+    public void force() {
+        if (regions != null)
+            for (final MappedByteBuffer region : regions)
+                region.force();
+    }
+
+    @Override
+    public double getDoubleValue(final int index) {
+        return values.get(index);
+    }
+
+    @Override
+    public DoubleStream getDoubleValues() {
+        return IntStream.range(0, getDimension()).mapToDouble(values::get);
+    }
+
+    @Override
+    protected void setVariableValue(final int index, final double value) {
+        journal.recordChange(index, values.get(index));
+        values.put(index, value);
+    }
+
+    @Override
+    protected void setVariableValues(final int index, final double[] values, final int offset, final int length) {
+        for (int i = index; i < index + length; ++i)
+            if (!journal.recordChange(i, this.values.get(i)))
+                break;
+        this.values.position(index);
+        this.values.put(values, offset, length);
+    }
+
+    private static void copy(final DoubleBuffer source, final DoubleBuffer destination) {
+        source.clear();
+        destination.clear();
+        destination.put(source);
+    }
+
+    @Override
+    protected void storeVariableValues() {
+        journal.store();
+    }
+
+    @Override
+    protected void restoreVariableValues() {
+        journal.restore();
+    }
+
+    private final class Storage implements UndoJournal.Storage {
+
+        @Override
+        public void copyToStored() {
+            copy(values, storedValues);
+        }
+
+        @Override
+        public void undoStored(final UndoJournal journal) {
+            journal.undo(storedValues);
+        }
+
+        @Override
+        public void undoCurrent(final UndoJournal journal) {
+            journal.undo(values);
+        }
+
+        @Override
+        public void restoreStored() {
+            if (regions != null) {
+                // keep the current values in the first half of the file
+                copy(storedValues, values);
+            } else {
+                final DoubleBuffer tmp = values;
+                values = storedValues;
+                storedValues = tmp;
+            }
+        }
+    }
+
+}
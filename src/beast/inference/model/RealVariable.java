@@ -23,7 +23,6 @@ package beast.inference.model;
 import beast.inference.logging.LogColumn;
 import beast.inference.logging.RealNumberColumn;
 
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.function.IntToDoubleFunction;
@@ -38,6 +37,11 @@ import java.util.stream.Stream;
 public abstract class RealVariable extends Variable<Double> {
 
     private final IntersectionBounds<Double> bounds;
+    // the limits in every dimension, used while the per-dimension limits are null
+    private double lowerLimit = Double.NEGATIVE_INFINITY;
+    private double upperLimit = Double.POSITIVE_INFINITY;
+    private double[] lowerLimits = null;
+    private double[] upperLimits = null;
 
     protected RealVariable(final String name, final int dimension) {
         super(name, dimension);
@@ -58,23 +62,128 @@ public abstract class RealVariable extends Variable<Double> {
     public abstract DoubleStream getDoubleValues();
 
     public final void setValue(final int index, final double value) {
-        super.setValue(index, value);
+        if (!trySetValue(index, value))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
     }
 
+    /**
+     * Sets a value only if it is within bounds, without boxing or throwing.
+     *
+     * @return true if the value was set, false if it was out-of-bounds and the variable is unchanged
+     */
+    public final boolean trySetValue(final int index, final double value) {
+        if (!inBounds(index, value))
+            return false;
+        setVariableValue(index, value);
+        fireVariableChanged(index);
+        return true;
+    }
+
+    @Override
+    protected final void setVariableValue(final int index, final Double value) {
+        setVariableValue(index, value.doubleValue());
+    }
+
+    protected abstract void setVariableValue(int index, double value);
+
     public final void setValues(final DoubleStream values) {
-        setValues(values.boxed());
+        setValues(values.toArray());
     }
 
     public final void setValues(final double... values) {
-        setValues(Arrays.stream(values));
+        if (values.length != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        setValues(0, values, 0, values.length);
+    }
+
+    /**
+     * Sets the first length values of this variable.
+     *
+     * @param values the source array
+     * @param offset the position of the first new value in the source array
+     * @param length the number of values to set
+     */
+    public final void setValues(final double[] values, final int offset, final int length) {
+        setValues(0, values, offset, length);
     }
 
+    /**
+     * Sets a range of values of this variable without boxing.
+     * All new values are checked against the bounds before any are set,
+     * and a single change event covering the range is fired.
+     *
+     * @param index the first index of this variable to set
+     * @param values the source array
+     * @param offset the position of the first new value in the source array
+     * @param length the number of values to set
+     */
+    public final void setValues(final int index, final double[] values, final int offset, final int length) {
+        if (!trySetValues(index, values, offset, length))
+            throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a range of values only if all of them are within bounds, without boxing or throwing.
+     *
+     * @return true if the values were set, false if any was out-of-bounds and the variable is unchanged
+     * @see #setValues(int, double[], int, int)
+     */
+    public final boolean trySetValues(final int index, final double[] values, final int offset, final int length) {
+        if (index < 0 || length < 0 || index + length > getDimension())
+            throw new IndexOutOfBoundsException("Range [" + index + ", " + (index + length) + ") is outside of variable.");
+        if (!inBounds(index, values, offset, length))
+            return false;
+        setVariableValues(index, values, offset, length);
+        fireVariableChanged(index, length);
+        return true;
+    }
+
+    /**
+     * Checks a range of new values against the bounds, as if all of them were set together.
+     */
+    protected boolean inBounds(final int index, final double[] values, final int offset, final int length) {
+        for (int i = 0; i < length; ++i)
+            if (!inBounds(index + i, values[offset + i]))
+                return false;
+        return true;
+    }
+
+    @Override
+    protected final void setVariableValues(final Stream<Double> values) {
+        final double[] newValues = values.mapToDouble(Double::doubleValue).toArray();
+        if (newValues.length != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        setVariableValues(0, newValues, 0, newValues.length);
+    }
+
+    protected abstract void setVariableValues(int index, double[] values, int offset, int length);
+
     public final void fill(final double value) {
-        setAll((IntToDoubleFunction) i -> value);
+        for (int i = 0; i < getDimension(); ++i)
+            if (!inBounds(i, value))
+                throw new IllegalArgumentException("Value is out-of-bounds.");
+        for (int i = 0; i < getDimension(); ++i)
+            setVariableValue(i, value);
+        fireVariableChanged();
     }
 
     public final void setAll(final IntToDoubleFunction generator) {
-        setValues(IntStream.range(0, getDimension()).mapToDouble(generator));
+        setValues(IntStream.range(0, getDimension()).mapToDouble(generator).toArray());
+    }
+
+    /**
+     * Checks a value against the cached limits, without boxing.
+     * Variables whose values are also constrained elsewhere may add further checks.
+     */
+    public boolean inBounds(final int index, final double value) {
+        if (lowerLimits == null)
+            return lowerLimit <= value && value <= upperLimit;
+        return lowerLimits[index] <= value && value <= upperLimits[index];
+    }
+
+    @Override
+    protected final boolean inBounds(final int index, final Double value) {
+        return inBounds(index, value.doubleValue());
     }
 
     @Override
@@ -85,12 +194,39 @@ public abstract class RealVariable extends Variable<Double> {
     @Override
     public final void addBounds(final Bounds<Double> bounds) {
         this.bounds.addBounds(bounds);
+        // limits are only cached per dimension if they differ between dimensions
+        if (this.bounds.isUniform()) {
+            lowerLimit = this.bounds.getLowerLimit(0);
+            upperLimit = this.bounds.getUpperLimit(0);
+            lowerLimits = null;
+            upperLimits = null;
+        } else {
+            final double[] lowerLimits = new double[getDimension()];
+            final double[] upperLimits = new double[getDimension()];
+            for (int i = 0; i < getDimension(); ++i) {
+                lowerLimits[i] = this.bounds.getLowerLimit(i);
+                upperLimits[i] = this.bounds.getUpperLimit(i);
+            }
+            this.lowerLimits = lowerLimits;
+            this.upperLimits = upperLimits;
+        }
+    }
+
+    public final double getLowerLimit(final int index) {
+        return lowerLimits == null ? lowerLimit : lowerLimits[index];
+    }
+
+    public final double getUpperLimit(final int index) {
+        return upperLimits == null ? upperLimit : upperLimits[index];
     }
 
     public final class RealBounds implements Bounds<Double> {
 
+        // null if the same limits apply in every dimension
         private final double[] lower;
         private final double[] upper;
+        private final double uniformLower;
+        private final double uniformUpper;
 
         public RealBounds(final double[] lower, final double[] upper) {
             if (lower.length != getDimension() || upper.length != getDimension())
@@ -99,33 +235,37 @@ public abstract class RealVariable extends Variable<Double> {
                 throw new IllegalArgumentException("Upper bound must be greater than or equal to lower bound.");
             this.lower = lower;
             this.upper = upper;
+            uniformLower = Double.NaN;
+            uniformUpper = Double.NaN;
         }
 
         public RealBounds(final double lower, final double upper) {
-            this.lower = new double[getDimension()];
-            Arrays.fill(this.lower, lower);
-            this.upper = new double[getDimension()];
-            Arrays.fill(this.upper, upper);
+            if (upper < lower)
+                throw new IllegalArgumentException("Upper bound must be greater than or equal to lower bound.");
+            this.lower = null;
+            this.upper = null;
+            uniformLower = lower;
+            uniformUpper = upper;
         }
 
         @Override
         public Double getUpperLimit(int dimension) {
-            return upper[dimension];
+            return upper == null ? uniformUpper : upper[dimension];
         }
 
         @Override
         public Stream<Double> getUpperLimits() {
-            return Arrays.stream(upper).boxed();
+            return IntStream.range(0, getDimension()).mapToObj(this::getUpperLimit);
         }
 
         @Override
         public Double getLowerLimit(int dimension) {
-            return lower[dimension];
+            return lower == null ? uniformLower : lower[dimension];
         }
 
         @Override
         public Stream<Double> getLowerLimits() {
-            return Arrays.stream(lower).boxed();
+            return IntStream.range(0, getDimension()).mapToObj(this::getLowerLimit);
         }
 
         @Override
@@ -0,0 +1,241 @@
+/*
+ * RealVariableView.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+
+/**
+ * A real variable that is a view of some of the entries of another (parent) real variable.
+ * The view shares the storage of its parent: reading and writing the view reads and writes the parent.
+ * Changes to the parent are re-indexed and only fired by the view if they touch its entries.
+ * Storing and restoring the view stores and restores the parent.
+ * The view takes the bounds of its parent's entries at the time it is created,
+ * and values set through the view are also checked against any bounds added to the parent since.
+ * The view listens to its parent, so it must be created before the parent is frozen by a {@link DependencyPlan}.
+ *
+ * @author Arman Bilge
+ */
+public final class RealVariableView extends RealVariable implements VariableListener {
+
+    private final RealVariable parent;
+    private final int offset;
+    private final int stride;
+    private final int[] indices;
+    // the parent indices of a gathered view in ascending order, and the view index of each
+    private final int[] sortedIndices;
+    private final int[] sortedPositions;
+
+    private boolean writing = false;
+
+    private RealVariableView(final String name, final RealVariable parent, final int offset, final int stride, final int dimension, final int[] indices) {
+        super(name, dimension);
+        if (parent.isFrozen())
+            throw new IllegalStateException("Cannot create a view of frozen variable " + parent.getName() + ".");
+        this.parent = parent;
+        this.offset = offset;
+        this.stride = stride;
+        this.indices = indices;
+        if (indices != null) {
+            for (final int index : indices)
+                if (index < 0 || index >= parent.getDimension())
+                    throw new IndexOutOfBoundsException("Index " + index + " is outside of parent.");
+            // sort the view indices by parent index, packed into longs so that no boxing is needed
+            final long[] pairs = new long[indices.length];
+            for (int i = 0; i < indices.length; ++i)
+                pairs[i] = (long) indices[i] << 32 | i;
+            Arrays.sort(pairs);
+            sortedIndices = new int[indices.length];
+            sortedPositions = new int[indices.length];
+            for (int i = 0; i < pairs.length; ++i) {
+                sortedIndices[i] = (int) (pairs[i] >>> 32);
+                sortedPositions[i] = (int) pairs[i];
+                if (i > 0 && sortedIndices[i] == sortedIndices[i - 1])
+                    throw new IllegalArgumentException("Index " + sortedIndices[i] + " is repeated.");
+            }
+        } else {
+            sortedIndices = null;
+            sortedPositions = null;
+            if (dimension > 0 && (offset < 0 || offset + (long) (dimension - 1) * stride >= parent.getDimension()))
+                throw new IndexOutOfBoundsException("View is outside of parent.");
+        }
+        addBounds(new RealBounds(
+                IntStream.range(0, dimension).mapToDouble(i -> parent.getLowerLimit(getParentIndex(i))).toArray(),
+                IntStream.range(0, dimension).mapToDouble(i -> parent.getUpperLimit(getParentIndex(i))).toArray()));
+        parent.addVariableListener(this);
+    }
+
+    /**
+     * @return a view of the contiguous entries [from, from + length) of the parent
+     */
+    public static RealVariableView slice(final String name, final RealVariable parent, final int from, final int length) {
+        return new RealVariableView(name, parent, from, 1, length, null);
+    }
+
+    /**
+     * @return a view of every stride-th entry of the parent, starting from offset
+     */
+    public static RealVariableView stride(final String name, final RealVariable parent, final int offset, final int stride, final int length) {
+        if (stride < 1)
+            throw new IllegalArgumentException("Stride must be positive.");
+        return new RealVariableView(name, parent, offset, stride, length, null);
+    }
+
+    /**
+     * @return a view of the given (distinct) entries of the parent, in the given order
+     */
+    public static RealVariableView gather(final String name, final RealVariable parent, final int... indices) {
+        return new RealVariableView(name, parent, -1, 0, indices.length, indices.clone());
+    }
+
+    public RealVariable getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the index in the parent of the given entry of this view
+     */
+    public int getParentIndex(final int index) {
+        return indices != null ? indices[index] : offset + index * stride;
+    }
+
+    /**
+     * @return the index in this view of the given entry of the parent, or -1 if it is not in this view
+     */
+    public int getViewIndex(final int parentIndex) {
+        if (indices != null) {
+            final int i = Arrays.binarySearch(sortedIndices, parentIndex);
+            return i >= 0 ? sortedPositions[i] : -1;
+        }
+        final int i = parentIndex - offset;
+        return i >= 0 && i % stride == 0 && i / stride < getDimension() ? i / stride : -1;
+    }
+
+    /**
+     * Also checks the value against the current bounds of the parent, which may have been narrowed since
+     * this view was created, so that setting values through the view never fails part way.
+     */
+    @Override
+    public boolean inBounds(final int index, final double value) {
+        return super.inBounds(index, value) && parent.inBounds(getParentIndex(index), value);
+    }
+
+    @Override
+    public double getDoubleValue(final int index) {
+        return parent.getDoubleValue(getParentIndex(index));
+    }
+
+    @Override
+    public DoubleStream getDoubleValues() {
+        return IntStream.range(0, getDimension()).mapToDouble(this::getDoubleValue);
+    }
+
+    @Override
+    protected void setVariableValue(final int index, final double value) {
+        writing = true;
+        try {
+            parent.setValue(getParentIndex(index), value);
+        } finally {
+            writing = false;
+        }
+    }
+
+    @Override
+    protected void setVariableValues(final int index, final double[] values, final int offset, final int length) {
+        writing = true;
+        try {
+            if (indices == null && stride == 1) {
+                parent.setValues(this.offset + index, values, offset, length);
+            } else {
+                for (int i = 0; i < length; ++i)
+                    parent.setValue(getParentIndex(index + i), values[offset + i]);
+            }
+        } finally {
+            writing = false;
+        }
+    }
+
+    /**
+     * Re-fires a change of the parent if it touches any entries of this view.
+     * Changes made through this view are not echoed, since the view fires those itself.
+     */
+    @Override
+    public void handleVariableChanged(final Variable.ChangeEvent change) {
+        if (writing)
+            return;
+        switch (change.getType()) {
+            case ALL_VALUES_CHANGED:
+                fireVariableChanged();
+                break;
+            case VALUE_CHANGED: {
+                final int i = getViewIndex(change.getIndex());
+                if (i != -1)
+                    fireVariableChanged(i);
+                break;
+            }
+            case RANGE_CHANGED:
+                if (indices == null) {
+                    // the entries of a strided view in a contiguous range of the parent are contiguous
+                    final int first = Math.max(0, ceilDiv(change.getIndex() - offset, stride));
+                    final int last = Math.min(getDimension() - 1, Math.floorDiv(change.getIndex() + change.getLength() - 1 - offset, stride));
+                    if (first <= last)
+                        fireVariableChanged(first, last - first + 1);
+                } else {
+                    fireEntriesChanged(change);
+                }
+                break;
+            default:
+                fireEntriesChanged(change);
+        }
+    }
+
+    /**
+     * Fires a single change event covering all entries of this view touched by the change of the parent.
+     */
+    private void fireEntriesChanged(final Variable.ChangeEvent change) {
+        int first = getDimension();
+        int last = -1;
+        for (int i = 0; i < getDimension(); ++i) {
+            if (change.isChanged(getParentIndex(i))) {
+                first = Math.min(first, i);
+                last = i;
+            }
+        }
+        if (first <= last)
+            fireVariableChanged(first, last - first + 1);
+    }
+
+    private static int ceilDiv(final int x, final int y) {
+        return -Math.floorDiv(-x, y);
+    }
+
+    @Override
+    protected void storeVariableValues() {
+        parent.storeValues();
+    }
+
+    @Override
+    protected void restoreVariableValues() {
+        parent.restoreValues();
+    }
+
+}
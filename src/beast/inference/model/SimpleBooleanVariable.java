@@ -0,0 +1,144 @@
+/*
+ * SimpleBooleanVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+/**
+ * A boolean variable packed into the bits of a long array, journalled like {@link SimpleRealVariable}
+ * but a whole word at a time, so that the journal is small compared to the packed values.
+ *
+ * @author Arman Bilge
+ */
+public final class SimpleBooleanVariable extends BooleanVariable {
+
+    private long[] words;
+    private long[] storedWords;
+    // the (word index, old word) pairs overwritten since the last store
+    private final int[] journalIndices;
+    private final long[] journalWords;
+    private int journalSize = 0;
+    private boolean journalOverflowed = false;
+
+    public SimpleBooleanVariable(final String name, final int dimension) {
+        super(name, dimension);
+        words = new long[(dimension + 63) >>> 6];
+        storedWords = new long[words.length];
+        final int capacity = Math.max(16, words.length / 8);
+        journalIndices = new int[capacity];
+        journalWords = new long[capacity];
+    }
+
+    public SimpleBooleanVariable(final String name, final int dimension, final boolean value) {
+        this(name, dimension);
+        fill(value);
+    }
+
+    public SimpleBooleanVariable(final String name, final boolean... values) {
+        this(name, values.length);
+        setValues(values);
+    }
+
+    @Override
+    public boolean getBooleanValue(final int index) {
+        return ((words[index >>> 6] >>> index) & 1L) != 0;
+    }
+
+    @Override
+    public int getTrueCount() {
+        int count = 0;
+        for (final long word : words)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    @Override
+    protected void setVariableValue(final int index, final boolean value) {
+        record(index >>> 6);
+        setBit(index, value);
+    }
+
+    @Override
+    protected void setVariableValues(final int index, final boolean[] values, final int offset, final int length) {
+        if (length == 0)
+            return;
+        // each word in the range is recorded once, however many of its bits change
+        for (int w = index >>> 6; w <= (index + length - 1) >>> 6; ++w)
+            record(w);
+        for (int i = 0; i < length; ++i)
+            setBit(index + i, values[offset + i]);
+    }
+
+    private void record(final int word) {
+        if (!journalOverflowed) {
+            if (journalSize == journalIndices.length) {
+                overflowJournal();
+            } else {
+                journalIndices[journalSize] = word;
+                journalWords[journalSize] = words[word];
+                ++journalSize;
+            }
+        }
+    }
+
+    private void setBit(final int index, final boolean value) {
+        if (value)
+            words[index >>> 6] |= 1L << index;
+        else
+            words[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Reconstructs the stored words from the current words and the journal.
+     */
+    private void overflowJournal() {
+        System.arraycopy(words, 0, storedWords, 0, words.length);
+        undoJournal(storedWords);
+        journalSize = 0;
+        journalOverflowed = true;
+    }
+
+    /**
+     * Writes the recorded old words back, most recent first.
+     */
+    private void undoJournal(final long[] target) {
+        for (int i = journalSize - 1; i >= 0; --i)
+            target[journalIndices[i]] = journalWords[i];
+    }
+
+    @Override
+    protected void storeVariableValues() {
+        journalSize = 0;
+        journalOverflowed = false;
+    }
+
+    @Override
+    protected void restoreVariableValues() {
+        if (journalOverflowed) {
+            final long[] tmp = words;
+            words = storedWords;
+            storedWords = tmp;
+        } else {
+            undoJournal(words);
+        }
+        journalSize = 0;
+        journalOverflowed = false;
+    }
+
+}
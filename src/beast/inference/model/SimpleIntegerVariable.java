@@ -0,0 +1,113 @@
+/*
+ * SimpleIntegerVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * An integer variable backed by an array, journalled like {@link SimpleRealVariable}.
+ *
+ * @author Arman Bilge
+ */
+public final class SimpleIntegerVariable extends IntegerVariable {
+
+    private int[] values;
+    private int[] storedValues;
+    private final UndoJournal journal;
+
+    public SimpleIntegerVariable(final String name, final int dimension) {
+        super(name, dimension);
+        values = new int[dimension];
+        storedValues = new int[dimension];
+        journal = new UndoJournal(dimension, new Storage());
+    }
+
+    public SimpleIntegerVariable(final String name, final int dimension, final int value) {
+        this(name, dimension);
+        fill(value);
+    }
+
+    public SimpleIntegerVariable(final String name, final int... values) {
+        this(name, values.length);
+        setValues(values);
+    }
+
+    @Override
+    public int getIntValue(final int index) {
+        return values[index];
+    }
+
+    @Override
+    public IntStream getIntValues() {
+        return Arrays.stream(values);
+    }
+
+    @Override
+    protected void setVariableValue(final int index, final int value) {
+        journal.recordChange(index, values[index]);
+        values[index] = value;
+    }
+
+    @Override
+    protected void setVariableValues(final int index, final int[] values, final int offset, final int length) {
+        for (int i = index; i < index + length; ++i)
+            if (!journal.recordChange(i, this.values[i]))
+                break;
+        System.arraycopy(values, offset, this.values, index, length);
+    }
+
+    @Override
+    protected void storeVariableValues() {
+        journal.store();
+    }
+
+    @Override
+    protected void restoreVariableValues() {
+        journal.restore();
+    }
+
+    private final class Storage implements UndoJournal.Storage {
+
+        @Override
+        public void copyToStored() {
+            System.arraycopy(values, 0, storedValues, 0, values.length);
+        }
+
+        @Override
+        public void undoStored(final UndoJournal journal) {
+            journal.undo(storedValues);
+        }
+
+        @Override
+        public void undoCurrent(final UndoJournal journal) {
+            journal.undo(values);
+        }
+
+        @Override
+        public void restoreStored() {
+            final int[] tmp = values;
+            values = storedValues;
+            storedValues = tmp;
+        }
+    }
+
+}
@@ -22,20 +22,26 @@ package beast.inference.model;
 
 import java.util.Arrays;
 import java.util.stream.DoubleStream;
-import java.util.stream.Stream;
 
 /**
+ * A real variable backed by an array.
+ * Changes since the last store are recorded in an undo journal, so that storing costs nothing
+ * and restoring only costs as much as the number of changed entries.
+ * If too many entries change the journal falls back to keeping a full copy of the stored values.
+ *
  * @author Arman Bilge
  */
 public final class SimpleRealVariable extends RealVariable {
 
     private double[] values;
     private double[] storedValues;
+    private final UndoJournal journal;
 
     public SimpleRealVariable(final String name, final int dimension) {
         super(name, dimension);
         values = new double[dimension];
         storedValues = new double[dimension];
+        journal = new UndoJournal(dimension, new Storage());
     }
 
     public SimpleRealVariable(final String name, final int dimension, final double value) {
@@ -59,27 +65,52 @@ public final class SimpleRealVariable extends RealVariable {
     }
 
     @Override
-    protected void setVariableValue(final int index, final Double value) {
+    protected void setVariableValue(final int index, final double value) {
+        journal.recordChange(index, values[index]);
         values[index] = value;
     }
 
     @Override
-    protected void setVariableValues(final Stream<Double> values) {
-        this.values = values.mapToDouble(Double::doubleValue).toArray();
-        if (this.values.length != getDimension())
-            throw new IllegalArgumentException("Wrong number of new values");
+    protected void setVariableValues(final int index, final double[] values, final int offset, final int length) {
+        for (int i = index; i < index + length; ++i)
+            if (!journal.recordChange(i, this.values[i]))
+                break;
+        System.arraycopy(values, offset, this.values, index, length);
     }
 
     @Override
-    public void storeValues() {
-        System.arraycopy(values, 0, storedValues, 0, getDimension());
+    protected void storeVariableValues() {
+        journal.store();
     }
 
     @Override
-    public void restoreValues() {
-        final double[] tmp = values;
-        values = storedValues;
-        storedValues = values;
+    protected void restoreVariableValues() {
+        journal.restore();
+    }
+
+    private final class Storage implements UndoJournal.Storage {
+
+        @Override
+        public void copyToStored() {
+            System.arraycopy(values, 0, storedValues, 0, values.length);
+        }
+
+        @Override
+        public void undoStored(final UndoJournal journal) {
+            journal.undo(storedValues);
+        }
+
+        @Override
+        public void undoCurrent(final UndoJournal journal) {
+            journal.undo(values);
+        }
+
+        @Override
+        public void restoreStored() {
+            final double[] tmp = values;
+            values = storedValues;
+            storedValues = tmp;
+        }
     }
 
 }
@@ -0,0 +1,127 @@
+/*
+ * TapedLikelihood.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import beast.math.Tape;
+
+/**
+ * A likelihood whose gradient is found by reverse-mode automatic differentiation.
+ * Subclasses only record the log likelihood on a tape, as a function of the entries of its real variables;
+ * the tape is reused for every calculation.
+ * Second derivatives are found exactly by forward-over-reverse sweeps of the same tape: a Hessian-vector product
+ * costs a small multiple of a gradient, and the Hessian diagonal one such sweep per entry, but only one recording.
+ *
+ * @author Arman Bilge
+ */
+public abstract class TapedLikelihood extends Likelihood {
+
+    private final Tape tape = new Tape();
+    private final RealVariable[] variables;
+    private final int[][] inputs;
+
+    /**
+     * @param model the model
+     * @param variables the variables to differentiate with respect to
+     */
+    public TapedLikelihood(final Model<?> model, final RealVariable... variables) {
+        super(model);
+        this.variables = variables.clone();
+        inputs = new int[variables.length][];
+        for (int v = 0; v < variables.length; ++v)
+            inputs[v] = new int[variables[v].getDimension()];
+    }
+
+    /**
+     * Records the log likelihood on the tape.
+     *
+     * @param tape the tape
+     * @param x the nodes of the variables, so that x[v][i] is entry i of variable v
+     * @return the node of the log likelihood
+     */
+    protected abstract int recordLogLikelihood(Tape tape, int[][] x);
+
+    private int record() {
+        tape.reset();
+        for (int v = 0; v < variables.length; ++v)
+            for (int i = 0; i < inputs[v].length; ++i)
+                inputs[v][i] = tape.variable(variables[v].getDoubleValue(i));
+        return recordLogLikelihood(tape, inputs);
+    }
+
+    @Override
+    protected double calculateLogLikelihood() {
+        return tape.getValue(record());
+    }
+
+    @Override
+    protected void calculateGradient(final Gradient gradient, final double chain) {
+        tape.backward(record());
+        for (int v = 0; v < variables.length; ++v)
+            for (int i = 0; i < inputs[v].length; ++i)
+                gradient.addDerivative(variables[v], i, chain * tape.getAdjoint(inputs[v][i]));
+    }
+
+    @Override
+    protected void calculateHessianDiagonal(final Gradient diagonal, final double chain) {
+        final int output = record();
+        int previous = -1;
+        for (int v = 0; v < variables.length; ++v) {
+            if (!diagonal.contains(variables[v]))
+                continue;
+            for (int i = 0; i < inputs[v].length; ++i) {
+                if (previous != -1)
+                    tape.setTangent(previous, 0.0);
+                previous = inputs[v][i];
+                tape.setTangent(previous, 1.0);
+                tape.backwardAlongTangents(output);
+                diagonal.addDerivative(variables[v], i, chain * tape.getTangentAdjoint(previous));
+            }
+        }
+    }
+
+    @Override
+    protected void calculateHessianVectorProduct(final Gradient vector, final Gradient product, final double chain) {
+        final int output = record();
+        for (int v = 0; v < variables.length; ++v)
+            for (int i = 0; i < inputs[v].length; ++i)
+                tape.setTangent(inputs[v][i], vector.getDerivative(variables[v], i));
+        tape.backwardAlongTangents(output);
+        for (int v = 0; v < variables.length; ++v)
+            for (int i = 0; i < inputs[v].length; ++i)
+                product.addDerivative(variables[v], i, chain * tape.getTangentAdjoint(inputs[v][i]));
+    }
+
+    @Override
+    protected void makeLikelihoodDirty() {
+        // Nothing to do
+    }
+
+    @Override
+    protected void storeCalculations() {
+        // Nothing to do
+    }
+
+    @Override
+    protected void restoreCalculations() {
+        // Nothing to do
+    }
+
+}
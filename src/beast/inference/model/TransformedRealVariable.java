@@ -0,0 +1,461 @@
+/*
+ * TransformedRealVariable.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+
+/**
+ * An unconstrained view of a bounded real variable, for gradient-based and other unconstrained samplers.
+ * Each entry is transformed according to the bounds of its parent: a logit transform if it is bounded
+ * on both sides, a log transform if it is bounded on one side, and no transform otherwise.
+ * Alternatively, the additive log-ratio (inverse softmax) transform maps a simplex of dimension K
+ * onto K - 1 unconstrained values.
+ * <p/>
+ * The transformed values and the log-determinant of the Jacobian of the inverse transform
+ * are cached, and updated only for the entries that change. Setting a transformed value sets the
+ * corresponding value of the parent, and is only allowed if the parent accepts it under its current limits,
+ * which may have changed since the transforms were chosen. The caches are journalled so that restoring
+ * costs as much as the number of changed entries; like any other variable the view must be added to a model
+ * alongside its parent so that it is stored and restored with it.
+ * Setting a value of a softmax view changes every entry of the parent, since they must still sum to one,
+ * so it costs as much as the dimension of the parent.
+ *
+ * @author Arman Bilge
+ */
+public final class TransformedRealVariable extends RealVariable implements VariableListener {
+
+    private enum Transform {
+        IDENTITY, LOWER, UPPER, LOGIT
+    }
+
+    private final RealVariable parent;
+    private final Transform[] transforms;
+
+    private final double[] values;
+    private final double[] logJacobians;
+    private double logJacobian;
+    private double storedLogJacobian;
+    // the log-Jacobian is updated incrementally, and resummed every so often so that rounding errors do not accumulate
+    private final int resyncInterval;
+    private int updateCount = 0;
+
+    private final UndoJournal valueJournal;
+    private final UndoJournal jacobianJournal;
+    private boolean journalOverflowed = false;
+
+    private boolean writing = false;
+
+    private TransformedRealVariable(final String name, final RealVariable parent, final int dimension, final Transform[] transforms) {
+        super(name, dimension);
+        this.parent = parent;
+        this.transforms = transforms;
+        values = new double[dimension];
+        logJacobians = new double[parent.getDimension()];
+        resyncInterval = Math.max(64, logJacobians.length);
+        valueJournal = new UndoJournal(dimension);
+        jacobianJournal = new UndoJournal(dimension);
+        updateAll();
+        parent.addVariableListener(this);
+    }
+
+    /**
+     * @return an element-wise unconstrained view of the parent, with transforms chosen by its bounds
+     */
+    public static TransformedRealVariable unconstrained(final String name, final RealVariable parent) {
+        final Transform[] transforms = new Transform[parent.getDimension()];
+        for (int i = 0; i < transforms.length; ++i) {
+            final boolean lower = parent.getLowerLimit(i) != Double.NEGATIVE_INFINITY;
+            final boolean upper = parent.getUpperLimit(i) != Double.POSITIVE_INFINITY;
+            if (lower && upper)
+                transforms[i] = Transform.LOGIT;
+            else if (lower)
+                transforms[i] = Transform.LOWER;
+            else if (upper)
+                transforms[i] = Transform.UPPER;
+            else
+                transforms[i] = Transform.IDENTITY;
+        }
+        return new TransformedRealVariable(name, parent, parent.getDimension(), transforms);
+    }
+
+    /**
+     * @return an unconstrained view of a parent whose values lie on the simplex,
+     * using the additive log-ratio transform y[i] = log(x[i] / x[K - 1])
+     */
+    public static TransformedRealVariable softmax(final String name, final RealVariable parent) {
+        if (parent.getDimension() < 2)
+            throw new IllegalArgumentException("Simplex must have at least two dimensions.");
+        return new TransformedRealVariable(name, parent, parent.getDimension() - 1, null);
+    }
+
+    public RealVariable getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the log-determinant of the Jacobian of the map from this variable to its parent
+     */
+    public double getLogJacobian() {
+        return logJacobian;
+    }
+
+    @Override
+    public double getDoubleValue(final int index) {
+        return values[index];
+    }
+
+    @Override
+    public DoubleStream getDoubleValues() {
+        return Arrays.stream(values);
+    }
+
+    private double forward(final int i, final double x) {
+        final double lower = parent.getLowerLimit(i);
+        final double upper = parent.getUpperLimit(i);
+        switch (transforms[i]) {
+            case LOWER:
+                return Math.log(x - lower);
+            case UPPER:
+                return Math.log(upper - x);
+            case LOGIT:
+                return Math.log(x - lower) - Math.log(upper - x);
+            default:
+                return x;
+        }
+    }
+
+    private double inverse(final int i, final double y) {
+        final double lower = parent.getLowerLimit(i);
+        final double upper = parent.getUpperLimit(i);
+        switch (transforms[i]) {
+            case LOWER:
+                return lower + Math.exp(y);
+            case UPPER:
+                return upper - Math.exp(y);
+            case LOGIT:
+                return lower + (upper - lower) / (1.0 + Math.exp(-y));
+            default:
+                return y;
+        }
+    }
+
+    private double logJacobian(final int i, final double y) {
+        switch (transforms[i]) {
+            case LOWER:
+            case UPPER:
+                return y;
+            case LOGIT:
+                return Math.log(parent.getUpperLimit(i) - parent.getLowerLimit(i)) - softplus(y) - softplus(-y);
+            default:
+                return 0.0;
+        }
+    }
+
+    private double differentiateLogJacobian(final int i, final double y) {
+        switch (transforms[i]) {
+            case LOWER:
+            case UPPER:
+                return 1.0;
+            case LOGIT:
+                return 1.0 - 2.0 / (1.0 + Math.exp(-y));
+            default:
+                return 0.0;
+        }
+    }
+
+    /**
+     * @return the derivative of the parent's entry with respect to the transformed entry
+     */
+    private double differentiateInverse(final int i, final double y) {
+        switch (transforms[i]) {
+            case LOWER:
+                return Math.exp(y);
+            case UPPER:
+                return -Math.exp(y);
+            case LOGIT:
+                final double s = 1.0 / (1.0 + Math.exp(-y));
+                return (parent.getUpperLimit(i) - parent.getLowerLimit(i)) * s * (1.0 - s);
+            default:
+                return 1.0;
+        }
+    }
+
+    private static double softplus(final double y) {
+        return y > 0 ? y + Math.log1p(Math.exp(-y)) : Math.log1p(Math.exp(y));
+    }
+
+    private void record(final int i) {
+        if (!journalOverflowed
+                && !(valueJournal.record(i, values[i]) && jacobianJournal.record(i, logJacobians[i])))
+            journalOverflowed = true;
+    }
+
+    /**
+     * Updates the cached entry from its transformed value.
+     */
+    private void update(final int i, final double y) {
+        record(i);
+        values[i] = y;
+        updateLogJacobian(i, logJacobian(i, y));
+    }
+
+    /**
+     * Updates the cached entry from the corresponding entry of the parent.
+     */
+    private void updateFromParent(final int i) {
+        if (transforms == null) {
+            // only the last entry of the simplex affects the other transformed values
+            record(i);
+            values[i] = Math.log(parent.getDoubleValue(i) / parent.getDoubleValue(values.length));
+            updateLogJacobian(i, Math.log(parent.getDoubleValue(i)));
+        } else {
+            update(i, forward(i, parent.getDoubleValue(i)));
+        }
+    }
+
+    private void updateLogJacobian(final int i, final double lj) {
+        logJacobian += lj - logJacobians[i];
+        logJacobians[i] = lj;
+        if (++updateCount >= resyncInterval)
+            sumLogJacobians();
+    }
+
+    private void sumLogJacobians() {
+        double sum = 0.0;
+        for (final double lj : logJacobians)
+            sum += lj;
+        logJacobian = sum;
+        updateCount = 0;
+    }
+
+    /**
+     * Recalculates all cached values from the parent.
+     */
+    private void updateAll() {
+        journalOverflowed = true;
+        if (transforms == null) {
+            final double last = parent.getDoubleValue(values.length);
+            for (int i = 0; i < values.length; ++i)
+                values[i] = Math.log(parent.getDoubleValue(i) / last);
+            for (int i = 0; i < logJacobians.length; ++i)
+                logJacobians[i] = Math.log(parent.getDoubleValue(i));
+        } else {
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = forward(i, parent.getDoubleValue(i));
+                logJacobians[i] = logJacobian(i, values[i]);
+            }
+        }
+        sumLogJacobians();
+    }
+
+    /**
+     * Checks that the parent accepts the corresponding value.
+     */
+    @Override
+    public boolean inBounds(final int index, final double value) {
+        if (transforms == null) {
+            final double[] y = values.clone();
+            y[index] = value;
+            return parentInBounds(softmax(y));
+        }
+        return parent.inBounds(index, inverse(index, value));
+    }
+
+    @Override
+    protected boolean inBounds(final int index, final double[] values, final int offset, final int length) {
+        if (transforms == null) {
+            final double[] y = this.values.clone();
+            System.arraycopy(values, offset, y, index, length);
+            return parentInBounds(softmax(y));
+        }
+        return super.inBounds(index, values, offset, length);
+    }
+
+    private boolean parentInBounds(final double[] x) {
+        for (int i = 0; i < x.length; ++i)
+            if (!parent.inBounds(i, x[i]))
+                return false;
+        return true;
+    }
+
+    @Override
+    protected void setVariableValue(final int index, final double value) {
+        if (transforms == null) {
+            final double[] y = values.clone();
+            y[index] = value;
+            setSimplex(y);
+        } else {
+            writing = true;
+            try {
+                parent.setValue(index, inverse(index, value));
+            } finally {
+                writing = false;
+            }
+            update(index, value);
+        }
+    }
+
+    @Override
+    protected void setVariableValues(final int index, final double[] values, final int offset, final int length) {
+        if (transforms == null) {
+            final double[] y = this.values.clone();
+            System.arraycopy(values, offset, y, index, length);
+            setSimplex(y);
+        } else {
+            final double[] x = new double[length];
+            for (int i = 0; i < length; ++i)
+                x[i] = inverse(index + i, values[offset + i]);
+            writing = true;
+            try {
+                parent.setValues(index, x, 0, length);
+            } finally {
+                writing = false;
+            }
+            for (int i = 0; i < length; ++i)
+                update(index + i, values[offset + i]);
+        }
+    }
+
+    /**
+     * Sets the parent to the softmax of the given values, leaving this variable unchanged if the parent rejects it.
+     */
+    private void setSimplex(final double[] y) {
+        writing = true;
+        try {
+            parent.setValues(softmax(y));
+        } finally {
+            writing = false;
+        }
+        System.arraycopy(y, 0, values, 0, values.length);
+        updateAll();
+    }
+
+    private static double[] softmax(final double[] y) {
+        final double[] x = new double[y.length + 1];
+        double max = 0.0;
+        for (final double v : y)
+            max = Math.max(max, v);
+        double sum = x[y.length] = Math.exp(-max);
+        for (int i = 0; i < y.length; ++i)
+            sum += x[i] = Math.exp(y[i] - max);
+        for (int i = 0; i < x.length; ++i)
+            x[i] /= sum;
+        return x;
+    }
+
+    /**
+     * Updates the caches for a change of the parent and fires a corresponding change.
+     * Changes made through this view are not echoed, since the view fires those itself.
+     */
+    @Override
+    public void handleVariableChanged(final Variable.ChangeEvent change) {
+        if (writing)
+            return;
+        if (change.getType() == ChangeType.ALL_VALUES_CHANGED || (transforms == null && change.isChanged(values.length))) {
+            updateAll();
+            fireVariableChanged();
+        } else if (change.getType() == ChangeType.VALUE_CHANGED) {
+            final int i = change.getIndex();
+            updateFromParent(i);
+            fireVariableChanged(i);
+        } else {
+            // the changed entries of ranges and blocks all lie in the range covered by the event
+            int first = getDimension();
+            int last = -1;
+            final int end = Math.min(getDimension(), change.getIndex() + change.getLength());
+            for (int i = Math.max(0, change.getIndex()); i < end; ++i) {
+                if (change.isChanged(i)) {
+                    updateFromParent(i);
+                    first = Math.min(first, i);
+                    last = i;
+                }
+            }
+            if (first <= last)
+                fireVariableChanged(first, last - first + 1);
+        }
+    }
+
+    /**
+     * Adds the gradient of the log-determinant of the Jacobian with respect to this variable.
+     *
+     * @param gradient the gradient to add to
+     * @param chain the factor to multiply the contribution by
+     */
+    public void addLogJacobianGradient(final Gradient gradient, final double chain) {
+        if (transforms == null) {
+            final int k = parent.getDimension();
+            for (int j = 0; j < values.length; ++j)
+                gradient.addDerivative(this, j, chain * (1.0 - k * parent.getDoubleValue(j)));
+        } else {
+            for (int i = 0; i < values.length; ++i)
+                gradient.addDerivative(this, i, chain * differentiateLogJacobian(i, values[i]));
+        }
+    }
+
+    /**
+     * Converts a gradient with respect to the parent into one with respect to this variable (by the chain rule),
+     * and adds it.
+     *
+     * @param gradient the gradient to add to
+     * @param parentGradient the gradient with respect to the parent
+     * @param chain the factor to multiply the contribution by
+     */
+    public void addParentGradient(final Gradient gradient, final double[] parentGradient, final double chain) {
+        if (parentGradient.length != parent.getDimension())
+            throw new IllegalArgumentException("Gradient must have the dimension of the parent.");
+        if (transforms == null) {
+            double dot = 0.0;
+            for (int i = 0; i < parentGradient.length; ++i)
+                dot += parentGradient[i] * parent.getDoubleValue(i);
+            for (int j = 0; j < values.length; ++j)
+                gradient.addDerivative(this, j, chain * parent.getDoubleValue(j) * (parentGradient[j] - dot));
+        } else {
+            for (int i = 0; i < values.length; ++i)
+                gradient.addDerivative(this, i, chain * parentGradient[i] * differentiateInverse(i, values[i]));
+        }
+    }
+
+    @Override
+    protected void storeVariableValues() {
+        parent.storeValues();
+        valueJournal.clear();
+        jacobianJournal.clear();
+        journalOverflowed = false;
+        storedLogJacobian = logJacobian;
+    }
+
+    @Override
+    protected void restoreVariableValues() {
+        parent.restoreValues();
+        if (journalOverflowed) {
+            updateAll();
+        } else {
+            valueJournal.undo(values);
+            jacobianJournal.undo(logJacobians);
+            logJacobian = storedLogJacobian;
+        }
+        valueJournal.clear();
+        jacobianJournal.clear();
+        journalOverflowed = false;
+    }
+
+}
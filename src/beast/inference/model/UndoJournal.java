@@ -0,0 +1,178 @@
+/*
+ * UndoJournal.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.inference.model;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Records the (index, old value) pairs overwritten since a variable was last stored,
+ * so that a restore only needs to undo the entries that actually changed.
+ * <p/>
+ * Given the {@link Storage} of a variable, the journal also keeps track of storing and restoring it:
+ * storing costs nothing, and if too many entries change the journal falls back to keeping a full copy
+ * of the stored values, reconstructed from the current values and the journal.
+ *
+ * @author Arman Bilge
+ */
+final class UndoJournal {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private final int[] indices;
+    private final double[] values;
+    private int size = 0;
+    private final Storage storage;
+    private boolean overflowed = false;
+
+    /**
+     * The current and stored values of a journalled variable.
+     */
+    interface Storage {
+
+        /**
+         * Copies all of the current values over the stored values.
+         */
+        void copyToStored();
+
+        /**
+         * Writes the old values recorded in the journal back into the stored values.
+         */
+        void undoStored(UndoJournal journal);
+
+        /**
+         * Writes the old values recorded in the journal back into the current values.
+         */
+        void undoCurrent(UndoJournal journal);
+
+        /**
+         * Makes the stored values current, for example by swapping the two.
+         */
+        void restoreStored();
+    }
+
+    /**
+     * Creates a journal that only records and undoes changes.
+     *
+     * @param dimension the dimension of the journalled variable
+     */
+    UndoJournal(final int dimension) {
+        this(dimension, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param dimension the dimension of the journalled variable
+     * @param storage the values of the variable, which the journal stores and restores
+     */
+    UndoJournal(final int dimension, final Storage storage) {
+        this(dimension, Integer.MAX_VALUE, storage);
+    }
+
+    /**
+     * @param dimension the dimension of the journalled variable
+     * @param maximumCapacity the most entries to record before the journal is full, whatever the dimension
+     * @param storage the values of the variable, which the journal stores and restores
+     */
+    UndoJournal(final int dimension, final int maximumCapacity, final Storage storage) {
+        final int capacity = Math.min(Math.max(MINIMUM_CAPACITY, dimension / 8), Math.max(MINIMUM_CAPACITY, maximumCapacity));
+        indices = new int[capacity];
+        values = new double[capacity];
+        this.storage = storage;
+    }
+
+    /**
+     * Records an entry about to be overwritten, or if the journal is full reconstructs the stored values in full.
+     *
+     * @return false if the stored values are kept in full, so that no further entries need recording until the next store
+     */
+    boolean recordChange(final int index, final double oldValue) {
+        if (overflowed)
+            return false;
+        if (record(index, oldValue))
+            return true;
+        storage.copyToStored();
+        storage.undoStored(this);
+        size = 0;
+        overflowed = true;
+        return false;
+    }
+
+    /**
+     * Marks the current values as stored.
+     */
+    void store() {
+        size = 0;
+        overflowed = false;
+    }
+
+    /**
+     * Puts the stored values back.
+     */
+    void restore() {
+        if (overflowed)
+            storage.restoreStored();
+        else
+            storage.undoCurrent(this);
+        size = 0;
+        overflowed = false;
+    }
+
+    /**
+     * @return false if the journal is full and the entry could not be recorded
+     */
+    boolean record(final int index, final double oldValue) {
+        if (size == indices.length)
+            return false;
+        indices[size] = index;
+        values[size] = oldValue;
+        ++size;
+        return true;
+    }
+
+    /**
+     * Writes the recorded old values back into the given array, most recent first.
+     */
+    void undo(final double[] target) {
+        for (int i = size - 1; i >= 0; --i)
+            target[indices[i]] = values[i];
+    }
+
+    /**
+     * Writes the recorded old values back into the given buffer, most recent first.
+     */
+    void undo(final DoubleBuffer target) {
+        for (int i = size - 1; i >= 0; --i)
+            target.put(indices[i], values[i]);
+    }
+
+    /**
+     * Writes the recorded old values back into the given integer array, most recent first.
+     * Integers are recorded exactly, since every int is representable as a double.
+     */
+    void undo(final int[] target) {
+        for (int i = size - 1; i >= 0; --i)
+            target[indices[i]] = (int) values[i];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+}
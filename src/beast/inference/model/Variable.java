@@ -24,11 +24,9 @@ import beast.inference.logging.LogColumn;
 import beast.inference.logging.Loggable;
 import beast.util.Identifiable;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -45,7 +43,11 @@ public abstract class Variable<V extends Comparable<V>> implements Identifiable,
     private String id;
     private final String name;
     private final int dimension;
-    private final List<VariableListener> listeners = new ArrayList<>();
+    private VariableListener[] listeners = new VariableListener[0];
+    private final ChangeEvent event = new ChangeEvent(ChangeType.ALL_VALUES_CHANGED, -1, 0);
+    private DependencyPlan plan;
+    private int planIndex;
+    private boolean dirty = true;
 
     protected Variable(final String name, final int dimension) {
         this.name = name;
@@ -71,25 +73,44 @@ public abstract class Variable<V extends Comparable<V>> implements Identifiable,
     public abstract Stream<V> getValues();
 
     public final void setValue(final int index, final V value) {
-        if (!getBounds().inBounds(index, value))
+        if (!trySetValue(index, value))
             throw new IllegalArgumentException("Value is out-of-bounds.");
+    }
+
+    /**
+     * Sets a value only if it is within bounds. Unlike setValue, an out-of-bounds value
+     * is a normal outcome: the variable is left unchanged and no listeners are notified.
+     *
+     * @return true if the value was set, false if it was out-of-bounds
+     */
+    public final boolean trySetValue(final int index, final V value) {
+        if (!inBounds(index, value))
+            return false;
         setVariableValue(index, value);
         fireVariableChanged(index);
+        return true;
     }
 
     public final void setValues(final Stream<V> values) {
-
-        final AtomicInteger i = new AtomicInteger();
-        final Bounds<V> bounds = getBounds();
-        final Stream<V> boundedValues = values.peek(v -> {
-            if (!bounds.inBounds(i.getAndIncrement(), v))
+        // every value is checked before any is written, so a rejected set changes nothing
+        final List<V> newValues = values.collect(Collectors.toList());
+        if (newValues.size() != getDimension())
+            throw new IllegalArgumentException("Wrong number of new values");
+        for (int i = 0; i < newValues.size(); ++i)
+            if (!inBounds(i, newValues.get(i)))
                 throw new IllegalArgumentException("Value is out-of-bounds.");
-        });
-
-        setVariableValues(boundedValues);
+        setVariableValues(newValues.stream());
         fireVariableChanged();
     }
 
+    /**
+     * Checks a boxed value against the bounds of this variable.
+     * Subclasses with a primitive check route through it, so that both paths agree.
+     */
+    protected boolean inBounds(final int index, final V value) {
+        return getBounds().inBounds(index, value);
+    }
+
     @SafeVarargs
     public final void setValues(final V... values) {
         setValues(Arrays.stream(values));
@@ -113,8 +134,11 @@ public abstract class Variable<V extends Comparable<V>> implements Identifiable,
      * @param listener the listener
      */
     public final void addVariableListener(final VariableListener listener) {
-        if (!listeners.contains(listener))
-            listeners.add(listener);
+        checkNotFrozen();
+        if (!Arrays.asList(listeners).contains(listener)) {
+            listeners = Arrays.copyOf(listeners, listeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+        }
     }
 
     /**
@@ -123,26 +147,125 @@ public abstract class Variable<V extends Comparable<V>> implements Identifiable,
      * @param listener the listener
      */
     public final void removeVariableListener(final VariableListener listener) {
-        listeners.remove(listener);
+        checkNotFrozen();
+        listeners = Arrays.stream(listeners).filter(l -> !l.equals(listener)).toArray(VariableListener[]::new);
     }
 
     public final void fireVariableChanged() {
-        listeners.forEach(l -> l.handleVariableChanged(new ChangeEvent(ChangeType.ALL_VALUES_CHANGED, -1)));
+        fireVariableChanged(ChangeType.ALL_VALUES_CHANGED, -1, getDimension());
     }
 
-    private void fireVariableChanged(final int index) {
-        listeners.forEach(l -> l.handleVariableChanged(new ChangeEvent(ChangeType.VALUE_CHANGED, index)));
+    protected final void fireVariableChanged(final int index) {
+        fireVariableChanged(ChangeType.VALUE_CHANGED, index, 1);
+    }
+
+    /**
+     * Fires a single change event covering the given range of indices.
+     */
+    protected final void fireVariableChanged(final int index, final int length) {
+        if (index == 0 && length == getDimension())
+            fireVariableChanged();
+        else if (length == 1)
+            fireVariableChanged(index);
+        else if (length > 0)
+            fireVariableChanged(ChangeType.RANGE_CHANGED, index, length);
+    }
+
+    /**
+     * Notifies the listeners of a change described by a custom event, for example one of a subclass
+     * that carries extra detail about the change. The same rules apply as for the built-in event:
+     * it may be reused, so listeners must not hold on to it.
+     */
+    protected final void fireVariableChanged(final ChangeEvent event) {
+        if (event.getVariable() != this)
+            throw new IllegalArgumentException("Event does not belong to this variable.");
+        dirty = true;
+        if (plan != null)
+            plan.fireVariableChanged(planIndex, event);
+        else
+            for (final VariableListener listener : listeners)
+                listener.handleVariableChanged(event);
+    }
+
+    /**
+     * Notifies the listeners using this variable's single change event, so that no garbage is created.
+     * The previous contents of the event are put back afterwards in case a listener changes this variable
+     * while the event is still being dispatched.
+     */
+    private void fireVariableChanged(final ChangeType type, final int index, final int length) {
+        final ChangeType previousType = event.type;
+        final int previousIndex = event.index;
+        final int previousLength = event.length;
+        event.type = type;
+        event.index = index;
+        event.length = length;
+        fireVariableChanged(event);
+        event.type = previousType;
+        event.index = previousIndex;
+        event.length = previousLength;
+    }
+
+    final VariableListener[] getVariableListeners() {
+        return listeners;
+    }
+
+    final DependencyPlan getPlan() {
+        return plan;
+    }
+
+    final int getPlanIndex() {
+        return planIndex;
+    }
+
+    final void setPlan(final DependencyPlan plan, final int planIndex) {
+        this.plan = plan;
+        this.planIndex = planIndex;
+    }
+
+    /**
+     * @return true if this variable is part of a compiled dependency plan and its listeners can no longer change
+     */
+    public final boolean isFrozen() {
+        return plan != null;
+    }
+
+    private void checkNotFrozen() {
+        if (isFrozen())
+            throw new IllegalStateException("Variable " + getName() + " is frozen.");
+    }
+
+    /**
+     * @return true if this variable has changed since it was last stored or restored
+     */
+    public final boolean isDirty() {
+        return dirty;
     }
 
     /**
      * stores the state of this parameter for subsequent restore
+     * (nothing needs to be done if it has not changed since the last store or restore)
      */
-    public abstract void storeValues();
+    public final void storeValues() {
+        if (dirty) {
+            storeVariableValues();
+            dirty = false;
+        }
+    }
+
+    protected abstract void storeVariableValues();
 
     /**
      * restores the stored state of this parameter
+     * (nothing needs to be done if it has not changed since the last store or restore)
      */
-    public abstract void restoreValues();
+    public final void restoreValues() {
+        if (dirty) {
+            restoreVariableValues();
+            dirty = false;
+        }
+    }
+
+    protected abstract void restoreVariableValues();
 
     /**
      * @return the bounds on this parameter
@@ -185,17 +308,33 @@ public abstract class Variable<V extends Comparable<V>> implements Identifiable,
 
     public enum ChangeType {
         VALUE_CHANGED,
+        RANGE_CHANGED,
+        BLOCK_CHANGED,
         ALL_VALUES_CHANGED
     }
 
+    /**
+     * Each variable reuses a single change event, so listeners must not hold on to it
+     * after handling the change.
+     */
     public class ChangeEvent {
 
-        private final ChangeType type;
-        private final int index;
+        private ChangeType type;
+        private int index;
+        private int length;
 
-        protected ChangeEvent(final ChangeType type, final int index) {
+        protected ChangeEvent(final ChangeType type, final int index, final int length) {
             this.type = type;
             this.index = index;
+            this.length = length;
+        }
+
+        /**
+         * Updates the affected indices of a reusable event.
+         */
+        protected final void setRange(final int index, final int length) {
+            this.index = index;
+            this.length = length;
         }
 
         public Variable<V> getVariable() {
@@ -206,8 +345,25 @@ public abstract class Variable<V extends Comparable<V>> implements Identifiable,
             return type;
         }
 
+        /**
+         * @return the changed index, the first changed index of a range, or -1 if all values changed
+         */
         public int getIndex() {
             return index;
         }
+
+        /**
+         * @return the number of changed indices
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return true if the value at the given index may have changed
+         */
+        public boolean isChanged(final int i) {
+            return type == ChangeType.ALL_VALUES_CHANGED || (index <= i && i < index + length);
+        }
     }
 }
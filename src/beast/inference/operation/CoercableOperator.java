@@ -26,9 +26,13 @@ package beast.inference.operation;
  * @author Alexei Drummond
  * @author Andrew Rambaut
  */
-public interface CoercableOperator extends Operator {
+public abstract class CoercableOperator extends Operator {
 
-    String AUTO_OPTIMIZE = "autoOptimize";
+    public static final String AUTO_OPTIMIZE = "autoOptimize";
+
+    protected CoercableOperator(final String name, final double weight) {
+        super(name, weight);
+    }
 
     /**
      * A coercable parameter must have a range from -infinity to +infinity with a preference for
@@ -45,7 +49,7 @@ public interface CoercableOperator extends Operator {
      *
      * @return a "coercable" parameter
      */
-    double getCoercableParameter();
+    public abstract double getCoercableParameter();
 
     /**
      * Sets the coercable parameter value. A coercable parameter must have a range from -infinity to +infinity with a preference for
@@ -53,16 +57,16 @@ public interface CoercableOperator extends Operator {
      *
      * @param value the value to set the coercible parameter to
      */
-    void setCoercableParameter(double value);
+    public abstract void setCoercableParameter(double value);
 
     /**
      * @return the underlying tuning parameter value
      */
-    double getRawParameter();
+    public abstract double getRawParameter();
 
     /**
      * @return the mode of this operator.
      */
-    CoercionMode getMode();
+    public abstract CoercionMode getMode();
 
 }
@@ -59,7 +59,25 @@ public abstract class Operator implements Identifiable {
      * @return the log hastings ratio of this operator.
      * @throws OperatorFailedException if the operator failed and should be rejected
      */
-    public abstract double operate() throws OperatorFailedException;
+    public final double operate() throws OperatorFailedException {
+        if (operateAllowed) {
+            operateAllowed = false;
+            return doOperation();
+        } else {
+            throw new RuntimeException("Operate called twice without accept/reject in between!");
+        }
+    }
+
+    /**
+     * Called by operate(), does the actual operation.
+     * An operator that already knows its proposal must be rejected (for example because
+     * {@link beast.inference.model.RealVariable#trySetValue(int, double)} returned false)
+     * can cheaply say so by returning negative infinity instead of throwing.
+     *
+     * @return the log hastings ratio of this operator, or negative infinity to reject the proposal.
+     * @throws OperatorFailedException if the operator failed and should be rejected
+     */
+    protected abstract double doOperation() throws OperatorFailedException;
 
     /**
      * Called to tell operator that operation was accepted
@@ -219,6 +237,9 @@ public abstract class Operator implements Identifiable {
         return totalEvaluationTime / (double) getOperationCount();
     }
 
+    /**
+     * @param time the time spent evaluating a proposal of this operator, in nanoseconds
+     */
     public final void addEvaluationTime(final long time) {
         totalEvaluationTime += time;
     }
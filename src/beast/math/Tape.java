@@ -0,0 +1,349 @@
+/*
+ * Tape.java
+ *
+ * BEAST: Bayesian Evolutionary Analysis by Sampling Trees
+ * Copyright (C) 2015 BEAST Developers
+ *
+ * BEAST is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package beast.math;
+
+import java.util.Arrays;
+
+/**
+ * A tape for reverse-mode automatic differentiation.
+ * A calculation is recorded as nodes on the tape, each identified by an int, holding its value and the partial
+ * derivatives with respect to at most two earlier nodes.
+ * A single backward sweep from an output then gives the derivatives of that output with respect to every node,
+ * at a small constant multiple of the cost of the calculation itself.
+ * Each node also holds its second partial derivatives, so that a sweep forwards along a direction
+ * followed by a sweep backwards (forward-over-reverse) gives the product of the Hessian with that direction,
+ * exactly and at a similar cost.
+ * <p/>
+ * The tape is stored in primitive arrays that grow as needed and are kept when it is reset,
+ * so that recording the same calculation again does not allocate.
+ * A tape is not safe for use by multiple threads at once.
+ * <p/>
+ * Since nodes are ints, operations with a constant operand have their own names
+ * ({@link #shift}, {@link #scale}) rather than overloading those on nodes.
+ *
+ * @author Arman Bilge
+ */
+public final class Tape {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int NONE = -1;
+
+    private int size = 0;
+    private double[] values = new double[INITIAL_CAPACITY];
+    private double[] adjoints = new double[INITIAL_CAPACITY];
+    private int[] firstParents = new int[INITIAL_CAPACITY];
+    private int[] secondParents = new int[INITIAL_CAPACITY];
+    private double[] firstPartials = new double[INITIAL_CAPACITY];
+    private double[] secondPartials = new double[INITIAL_CAPACITY];
+    // the second partial derivatives with respect to the first parent, both parents and the second parent
+    private double[] firstCurvatures = new double[INITIAL_CAPACITY];
+    private double[] crossCurvatures = new double[INITIAL_CAPACITY];
+    private double[] secondCurvatures = new double[INITIAL_CAPACITY];
+    private double[] tangents = new double[INITIAL_CAPACITY];
+    private double[] tangentAdjoints = new double[INITIAL_CAPACITY];
+
+    /**
+     * Discards all nodes, keeping the storage for the next recording.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * @return the number of nodes recorded
+     */
+    public int size() {
+        return size;
+    }
+
+    private int push(final double value, final int firstParent, final double firstPartial,
+                     final int secondParent, final double secondPartial,
+                     final double firstCurvature, final double crossCurvature, final double secondCurvature) {
+        if (size == values.length) {
+            final int capacity = 2 * size;
+            values = Arrays.copyOf(values, capacity);
+            adjoints = Arrays.copyOf(adjoints, capacity);
+            firstParents = Arrays.copyOf(firstParents, capacity);
+            secondParents = Arrays.copyOf(secondParents, capacity);
+            firstPartials = Arrays.copyOf(firstPartials, capacity);
+            secondPartials = Arrays.copyOf(secondPartials, capacity);
+            firstCurvatures = Arrays.copyOf(firstCurvatures, capacity);
+            crossCurvatures = Arrays.copyOf(crossCurvatures, capacity);
+            secondCurvatures = Arrays.copyOf(secondCurvatures, capacity);
+            tangents = Arrays.copyOf(tangents, capacity);
+            tangentAdjoints = Arrays.copyOf(tangentAdjoints, capacity);
+        }
+        values[size] = value;
+        firstParents[size] = firstParent;
+        firstPartials[size] = firstPartial;
+        secondParents[size] = secondParent;
+        secondPartials[size] = secondPartial;
+        firstCurvatures[size] = firstCurvature;
+        crossCurvatures[size] = crossCurvature;
+        secondCurvatures[size] = secondCurvature;
+        tangents[size] = 0.0;
+        return size++;
+    }
+
+    private int push(final double value) {
+        return push(value, NONE, 0.0, NONE, 0.0, 0.0, 0.0, 0.0);
+    }
+
+    private int push(final double value, final int x, final double derivative, final double secondDerivative) {
+        return push(value, x, derivative, NONE, 0.0, secondDerivative, 0.0, 0.0);
+    }
+
+    /**
+     * Records an input, with respect to which derivatives can be taken.
+     */
+    public int variable(final double value) {
+        return push(value);
+    }
+
+    /**
+     * Records a constant.
+     */
+    public int constant(final double value) {
+        return push(value);
+    }
+
+    /**
+     * Records an arbitrary differentiable function of one node, given its value and derivative there.
+     * Its second derivative is unknown, so Hessians that depend on it are NaN.
+     */
+    public int apply(final int x, final double value, final double derivative) {
+        return apply(x, value, derivative, Double.NaN);
+    }
+
+    /**
+     * Records an arbitrary twice differentiable function of one node, given its value and derivatives there.
+     */
+    public int apply(final int x, final double value, final double derivative, final double secondDerivative) {
+        return push(value, x, derivative, secondDerivative);
+    }
+
+    /**
+     * Records an arbitrary differentiable function of two nodes, given its value and partial derivatives there.
+     * Its second derivatives are unknown, so Hessians that depend on them are NaN.
+     */
+    public int apply(final int x, final int y, final double value, final double xDerivative, final double yDerivative) {
+        return apply(x, y, value, xDerivative, yDerivative, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Records an arbitrary twice differentiable function of two nodes, given its value and partial derivatives there.
+     */
+    public int apply(final int x, final int y, final double value, final double xDerivative, final double yDerivative,
+                     final double xxDerivative, final double xyDerivative, final double yyDerivative) {
+        return push(value, x, xDerivative, y, yDerivative, xxDerivative, xyDerivative, yyDerivative);
+    }
+
+    public int add(final int x, final int y) {
+        return push(values[x] + values[y], x, 1.0, y, 1.0, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * Records the sum of a node and a constant.
+     */
+    public int shift(final int x, final double c) {
+        return push(values[x] + c, x, 1.0, 0.0);
+    }
+
+    public int subtract(final int x, final int y) {
+        return push(values[x] - values[y], x, 1.0, y, -1.0, 0.0, 0.0, 0.0);
+    }
+
+    public int multiply(final int x, final int y) {
+        return push(values[x] * values[y], x, values[y], y, values[x], 0.0, 1.0, 0.0);
+    }
+
+    /**
+     * Records the product of a node and a constant.
+     */
+    public int scale(final int x, final double c) {
+        return push(values[x] * c, x, c, 0.0);
+    }
+
+    public int divide(final int x, final int y) {
+        final double r = 1.0 / values[y];
+        final double q = values[x] * r;
+        return push(q, x, r, y, -q * r, 0.0, -r * r, 2.0 * q * r * r);
+    }
+
+    public int negate(final int x) {
+        return push(-values[x], x, -1.0, 0.0);
+    }
+
+    public int square(final int x) {
+        return push(values[x] * values[x], x, 2.0 * values[x], 2.0);
+    }
+
+    public int sqrt(final int x) {
+        final double s = Math.sqrt(values[x]);
+        return push(s, x, 0.5 / s, -0.25 / (s * values[x]));
+    }
+
+    public int pow(final int x, final double p) {
+        final double v = values[x];
+        return push(Math.pow(v, p), x, p * Math.pow(v, p - 1.0), p * (p - 1.0) * Math.pow(v, p - 2.0));
+    }
+
+    public int exp(final int x) {
+        final double e = Math.exp(values[x]);
+        return push(e, x, e, e);
+    }
+
+    public int log(final int x) {
+        final double r = 1.0 / values[x];
+        return push(Math.log(values[x]), x, r, -r * r);
+    }
+
+    public int log1p(final int x) {
+        final double r = 1.0 / (1.0 + values[x]);
+        return push(Math.log1p(values[x]), x, r, -r * r);
+    }
+
+    public int sin(final int x) {
+        final double s = Math.sin(values[x]);
+        return push(s, x, Math.cos(values[x]), -s);
+    }
+
+    public int cos(final int x) {
+        final double c = Math.cos(values[x]);
+        return push(c, x, -Math.sin(values[x]), -c);
+    }
+
+    /**
+     * Records the sum of the nodes.
+     */
+    public int sum(final int... xs) {
+        int sum = constant(0.0);
+        for (final int x : xs)
+            sum = add(sum, x);
+        return sum;
+    }
+
+    public double getValue(final int x) {
+        return values[x];
+    }
+
+    /**
+     * Propagates derivatives backwards from the output, after which the adjoint of each node
+     * is the derivative of the output with respect to it.
+     *
+     * @param output the node to differentiate
+     */
+    public void backward(final int output) {
+        if (output < 0 || output >= size)
+            throw new IndexOutOfBoundsException();
+        Arrays.fill(adjoints, 0, output, 0.0);
+        adjoints[output] = 1.0;
+        for (int i = output; i >= 0; --i) {
+            final double adjoint = adjoints[i];
+            if (adjoint != 0.0) {
+                if (firstParents[i] != NONE)
+                    adjoints[firstParents[i]] += adjoint * firstPartials[i];
+                if (secondParents[i] != NONE)
+                    adjoints[secondParents[i]] += adjoint * secondPartials[i];
+            }
+        }
+    }
+
+    /**
+     * @return the derivative of the last output propagated backwards with respect to the node
+     */
+    public double getAdjoint(final int x) {
+        return adjoints[x];
+    }
+
+    /**
+     * Sets the entry of the direction for the next forward-over-reverse sweep at an input.
+     * The entries at all inputs are zero when they are recorded.
+     */
+    public void setTangent(final int x, final double tangent) {
+        if (x < 0 || x >= size)
+            throw new IndexOutOfBoundsException();
+        if (firstParents[x] != NONE)
+            throw new IllegalArgumentException("Node " + x + " is not an input.");
+        tangents[x] = tangent;
+    }
+
+    /**
+     * Propagates the direction set at the inputs forwards and then derivatives backwards from the output.
+     * Afterwards the adjoint of each node is the derivative of the output with respect to it, as after
+     * {@link #backward(int)}, and its tangent adjoint is the derivative of that along the direction;
+     * at the inputs, the tangent adjoints are the product of the Hessian of the output with the direction.
+     *
+     * @param output the node to differentiate twice
+     */
+    public void backwardAlongTangents(final int output) {
+        if (output < 0 || output >= size)
+            throw new IndexOutOfBoundsException();
+        for (int i = 0; i <= output; ++i) {
+            if (firstParents[i] != NONE) {
+                double tangent = firstPartials[i] * tangents[firstParents[i]];
+                if (secondParents[i] != NONE)
+                    tangent += secondPartials[i] * tangents[secondParents[i]];
+                tangents[i] = tangent;
+            }
+        }
+        Arrays.fill(adjoints, 0, output, 0.0);
+        Arrays.fill(tangentAdjoints, 0, output + 1, 0.0);
+        adjoints[output] = 1.0;
+        for (int i = output; i >= 0; --i) {
+            final double adjoint = adjoints[i];
+            final double tangentAdjoint = tangentAdjoints[i];
+            final int first = firstParents[i];
+            final int second = secondParents[i];
+            // curvatures only matter along directions in which the parents move, and may be unknown otherwise
+            final boolean moving = first != NONE
+                    && (tangents[first] != 0.0 || (second != NONE && tangents[second] != 0.0));
+            if (first != NONE) {
+                if (adjoint != 0.0) {
+                    adjoints[first] += adjoint * firstPartials[i];
+                    if (moving)
+                        tangentAdjoints[first] += adjoint * (firstCurvatures[i] * tangents[first]
+                                + (second != NONE ? crossCurvatures[i] * tangents[second] : 0.0));
+                }
+                if (tangentAdjoint != 0.0)
+                    tangentAdjoints[first] += tangentAdjoint * firstPartials[i];
+            }
+            if (second != NONE) {
+                if (adjoint != 0.0) {
+                    adjoints[second] += adjoint * secondPartials[i];
+                    if (moving)
+                        tangentAdjoints[second] += adjoint
+                                * (crossCurvatures[i] * tangents[first] + secondCurvatures[i] * tangents[second]);
+                }
+                if (tangentAdjoint != 0.0)
+                    tangentAdjoints[second] += tangentAdjoint * secondPartials[i];
+            }
+        }
+    }
+
+    /**
+     * @return the derivative along the direction of the adjoint of the node, after a forward-over-reverse sweep
+     */
+    public double getTangentAdjoint(final int x) {
+        return tangentAdjoints[x];
+    }
+
+}